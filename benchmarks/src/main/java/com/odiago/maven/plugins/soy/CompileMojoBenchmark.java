@@ -0,0 +1,273 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.template.soy.SoyFileSet;
+import com.google.template.soy.jssrc.SoyJsSrcOptions;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the steps of the compile goal over synthetic soy corpora: building the soy file
+ * set, compiling it to javascript, and writing the outputs.
+ *
+ * <p>Each step is measured in a warm JVM, averaged over iterations after a warm-up, and in a
+ * cold one, as a single shot in each of several fresh JVMs. The state each step needs is set
+ * up before it is measured, so a cold step only pays for its own class loading and JIT
+ * compilation.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompileMojoBenchmark {
+  /** The number of templates in each file of the corpora. */
+  private static final int TEMPLATES_PER_FILE = 5;
+
+  /** A synthetic corpus of soy files, read into memory. */
+  @State(Scope.Benchmark)
+  public static class Corpus {
+    // JMH parameters are named after their fields on the command line, as in -p templates=10.
+
+    /** The number of templates in the corpus, rounded up to whole files. */
+    @Param({"10", "1000", "20000"})
+    public int templates;
+
+    /** Whether to generate Jsdoc. */
+    @Param({"false", "true"})
+    public boolean shouldGenerateJsdoc;
+
+    /** Whether to generate provide/require statements. */
+    @Param({"false", "true"})
+    public boolean shouldProvideRequireSoyNamespaces;
+
+    /** The directory holding the corpus and outputs. */
+    private File mDirectory;
+
+    /** The mojo, configured from the parameters. */
+    private CompileMojo mMojo;
+
+    /** The soy files. */
+    private List<File> mSoyFiles;
+
+    /** The contents of each soy file, in the same order. */
+    private List<String> mContents;
+
+    /**
+     * Writes the corpus, and reads it back.
+     *
+     * @throws IOException If the corpus cannot be written or read.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      mDirectory = Files.createTempDirectory("soy-benchmark").toFile();
+      SoyCorpus corpus = new SoyCorpus();
+      corpus.setFiles((templates + TEMPLATES_PER_FILE - 1) / TEMPLATES_PER_FILE);
+      corpus.setTemplatesPerFile(TEMPLATES_PER_FILE);
+      mSoyFiles = corpus.write(new File(mDirectory, "soy"));
+      mContents = new ArrayList<String>(mSoyFiles.size());
+      for (File soyFile : mSoyFiles) {
+        mContents.add(FileUtils.readFileToString(soyFile, "UTF-8"));
+      }
+      mMojo = new CompileMojo();
+      mMojo.setShouldGenerateJsdoc(shouldGenerateJsdoc);
+      mMojo.setShouldProvideRequireSoyNamespaces(shouldProvideRequireSoyNamespaces);
+      mMojo.setGlobals(corpus.getGlobals());
+    }
+
+    /**
+     * Deletes the corpus and outputs.
+     *
+     * @throws IOException If they cannot be deleted.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      FileUtils.deleteDirectory(mDirectory);
+    }
+  }
+
+  /** The soy file set of a corpus, ready to compile. */
+  @State(Scope.Benchmark)
+  public static class FileSet {
+    /** The soy file set. */
+    private SoyFileSet mFileSet;
+
+    /** The options for generating javascript. */
+    private SoyJsSrcOptions mJsSrcOptions;
+
+    /**
+     * Builds the soy file set.
+     *
+     * @param corpus The corpus.
+     * @throws MojoExecutionException If the soy file set cannot be built.
+     */
+    @Setup(Level.Trial)
+    public void setUp(Corpus corpus) throws MojoExecutionException {
+      mFileSet = corpus.mMojo.getInputFileSet(corpus.mSoyFiles, corpus.mContents);
+      mJsSrcOptions = corpus.mMojo.getJsSrcOptions();
+    }
+  }
+
+  /** The compiled javascript of a corpus, ready to write. */
+  @State(Scope.Benchmark)
+  public static class Outputs {
+    /** The output files, in the order of the soy files. */
+    private List<File> mOutputFiles;
+
+    /** The compiled javascript, in the order of the soy files. */
+    private List<String> mCompiledSrcs;
+
+    /** Writes the outputs, as the mojo does. */
+    private OutputWriter mWriter;
+
+    /**
+     * Compiles the corpus.
+     *
+     * @param corpus The corpus.
+     * @throws MojoExecutionException If the corpus cannot be compiled.
+     */
+    @Setup(Level.Trial)
+    public void setUp(Corpus corpus) throws MojoExecutionException {
+      mCompiledSrcs = corpus.mMojo.getInputFileSet(corpus.mSoyFiles, corpus.mContents)
+          .compileToJsSrc(corpus.mMojo.getJsSrcOptions(), null);
+      File soyDirectory = new File(corpus.mDirectory, "soy");
+      File outputDirectory = new File(corpus.mDirectory, "js");
+      mOutputFiles = new ArrayList<File>(corpus.mSoyFiles.size());
+      for (File soyFile : corpus.mSoyFiles) {
+        String relative = soyDirectory.toURI().relativize(soyFile.toURI()).getPath();
+        mOutputFiles.add(new File(outputDirectory, relative + ".js"));
+      }
+      mWriter = new OutputWriter(OutputWriter.Fsync.NONE, 1, false);
+    }
+  }
+
+  /**
+   * Builds the soy file set of a corpus, in a warm JVM.
+   *
+   * @param corpus The corpus.
+   * @return The soy file set.
+   * @throws MojoExecutionException If the soy file set cannot be built.
+   */
+  @Benchmark
+  public SoyFileSet getInputFileSet(Corpus corpus) throws MojoExecutionException {
+    return corpus.mMojo.getInputFileSet(corpus.mSoyFiles, corpus.mContents);
+  }
+
+  /**
+   * Builds the soy file set of a corpus, in a cold JVM.
+   *
+   * @param corpus The corpus.
+   * @return The soy file set.
+   * @throws MojoExecutionException If the soy file set cannot be built.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 0)
+  @Measurement(iterations = 1)
+  @Fork(5)
+  public SoyFileSet getInputFileSetCold(Corpus corpus) throws MojoExecutionException {
+    return getInputFileSet(corpus);
+  }
+
+  /**
+   * Compiles the soy file set of a corpus to javascript, in a warm JVM.
+   *
+   * @param fileSet The soy file set.
+   * @return The compiled javascript.
+   */
+  @Benchmark
+  public List<String> compileToJsSrc(FileSet fileSet) {
+    return fileSet.mFileSet.compileToJsSrc(fileSet.mJsSrcOptions, null);
+  }
+
+  /**
+   * Compiles the soy file set of a corpus to javascript, in a cold JVM.
+   *
+   * @param fileSet The soy file set.
+   * @return The compiled javascript.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 0)
+  @Measurement(iterations = 1)
+  @Fork(5)
+  public List<String> compileToJsSrcCold(FileSet fileSet) {
+    return compileToJsSrc(fileSet);
+  }
+
+  /**
+   * Encodes and writes the compiled javascript of a corpus, as the write loop of the mojo
+   * does, in a warm JVM.
+   *
+   * @param outputs The compiled javascript.
+   * @return The number of bytes written.
+   * @throws IOException If an output cannot be written.
+   */
+  @Benchmark
+  public long writeOutputs(Outputs outputs) throws IOException {
+    long bytes = 0;
+    for (int i = 0; i < outputs.mOutputFiles.size(); i++) {
+      ByteBuffer content = outputs.mWriter.encode(outputs.mCompiledSrcs.get(i));
+      try {
+        bytes += content.remaining();
+        outputs.mWriter.write(outputs.mOutputFiles.get(i), content);
+      } finally {
+        outputs.mWriter.release(content);
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Encodes and writes the compiled javascript of a corpus, in a cold JVM.
+   *
+   * @param outputs The compiled javascript.
+   * @return The number of bytes written.
+   * @throws IOException If an output cannot be written.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 0)
+  @Measurement(iterations = 1)
+  @Fork(5)
+  public long writeOutputsCold(Outputs outputs) throws IOException {
+    return writeOutputs(outputs);
+  }
+}
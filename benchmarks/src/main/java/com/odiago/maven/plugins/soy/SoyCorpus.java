@@ -0,0 +1,389 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Generates synthetic soy corpora, for the benchmarks and for trying the plugin on trees the
+ * size and shape of real ones.
+ *
+ * <p>Every template greets, translates messages, branches, loops, prints compile-time globals
+ * and calls templates in earlier files, and the first template of each file also calls a
+ * deltemplate of an earlier file, so the compiler has a call graph to check. How much of each
+ * there is can be configured. A corpus only depends on its settings, and the first files of a
+ * larger corpus are the same as those of a smaller one, so results can be compared across
+ * machines, changes and sizes.</p>
+ *
+ * <p>Run it to write a corpus to a directory:</p>
+ *
+ * <pre>
+ *   java -cp benchmarks.jar com.odiago.maven.plugins.soy.SoyCorpus DIRECTORY [NAME=VALUE...]
+ * </pre>
+ *
+ * <p>where each NAME is a setting, such as <code>files=100000</code>. The compile-time globals
+ * the corpus references are written next to it, to <code>globals.xml</code>, as a
+ * <code>&lt;globals&gt;</code> element to copy into the plugin configuration.</p>
+ */
+public final class SoyCorpus {
+  /** The number of files in each directory. */
+  private static final int FILES_PER_DIRECTORY = 100;
+
+  /** The number of soy files. */
+  private int mFiles = 200;
+
+  /** The number of namespaces the files are spread across, or 0 for one per file. */
+  private int mNamespaces = 0;
+
+  /** The number of templates in each file. */
+  private int mTemplatesPerFile = 5;
+
+  /** The number of templates in earlier files each template calls. */
+  private int mCallsPerTemplate = 2;
+
+  /** The number of deltemplates in each file. */
+  private int mDelTemplatesPerFile = 1;
+
+  /** The number of <code>{msg}</code> blocks in each template and deltemplate. */
+  private int mMsgsPerTemplate = 2;
+
+  /** The number of compile-time globals. */
+  private int mGlobals = 10;
+
+  /** The number of compile-time globals each template prints. */
+  private int mGlobalsPerTemplate = 1;
+
+  /** Seeds the choices of callees and globals. */
+  private long mSeed = 0;
+
+  /**
+   * Sets the number of soy files.
+   *
+   * @param files The number of files.
+   */
+  public void setFiles(int files) {
+    mFiles = Math.max(1, files);
+  }
+
+  /**
+   * Sets the number of namespaces the files are spread across, in runs of consecutive files.
+   * Files that share a namespace cannot all be provided to Closure, so only share namespaces
+   * without <code>shouldProvideRequireSoyNamespaces</code>.
+   *
+   * @param namespaces The number of namespaces, or 0 for one per file.
+   */
+  public void setNamespaces(int namespaces) {
+    mNamespaces = Math.max(0, namespaces);
+  }
+
+  /**
+   * Sets the number of templates in each file.
+   *
+   * @param templatesPerFile The number of templates.
+   */
+  public void setTemplatesPerFile(int templatesPerFile) {
+    mTemplatesPerFile = Math.max(1, templatesPerFile);
+  }
+
+  /**
+   * Sets the number of templates in earlier files each template calls, its fan-out.
+   *
+   * @param callsPerTemplate The number of calls.
+   */
+  public void setCallsPerTemplate(int callsPerTemplate) {
+    mCallsPerTemplate = Math.max(0, callsPerTemplate);
+  }
+
+  /**
+   * Sets the number of deltemplates in each file.
+   *
+   * @param delTemplatesPerFile The number of deltemplates.
+   */
+  public void setDelTemplatesPerFile(int delTemplatesPerFile) {
+    mDelTemplatesPerFile = Math.max(0, delTemplatesPerFile);
+  }
+
+  /**
+   * Sets the number of <code>{msg}</code> blocks in each template and deltemplate.
+   *
+   * @param msgsPerTemplate The number of messages.
+   */
+  public void setMsgsPerTemplate(int msgsPerTemplate) {
+    mMsgsPerTemplate = Math.max(0, msgsPerTemplate);
+  }
+
+  /**
+   * Sets the number of compile-time globals.
+   *
+   * @param globals The number of globals.
+   */
+  public void setGlobals(int globals) {
+    mGlobals = Math.max(0, globals);
+  }
+
+  /**
+   * Sets the number of compile-time globals each template prints.
+   *
+   * @param globalsPerTemplate The number of global references.
+   */
+  public void setGlobalsPerTemplate(int globalsPerTemplate) {
+    mGlobalsPerTemplate = Math.max(0, globalsPerTemplate);
+  }
+
+  /**
+   * Sets the seed of the choices of callees and globals.
+   *
+   * @param seed The seed.
+   */
+  public void setSeed(long seed) {
+    mSeed = seed;
+  }
+
+  /**
+   * Sets a setting by name, as given on the command line.
+   *
+   * @param name The name of the setting, which is that of its setter without "set".
+   * @param value The value.
+   * @throws IllegalArgumentException If there is no such setting, or the value is not a number.
+   */
+  public void set(String name, String value) {
+    if ("files".equals(name)) {
+      setFiles(Integer.parseInt(value));
+    } else if ("namespaces".equals(name)) {
+      setNamespaces(Integer.parseInt(value));
+    } else if ("templatesPerFile".equals(name)) {
+      setTemplatesPerFile(Integer.parseInt(value));
+    } else if ("callsPerTemplate".equals(name)) {
+      setCallsPerTemplate(Integer.parseInt(value));
+    } else if ("delTemplatesPerFile".equals(name)) {
+      setDelTemplatesPerFile(Integer.parseInt(value));
+    } else if ("msgsPerTemplate".equals(name)) {
+      setMsgsPerTemplate(Integer.parseInt(value));
+    } else if ("globals".equals(name)) {
+      setGlobals(Integer.parseInt(value));
+    } else if ("globalsPerTemplate".equals(name)) {
+      setGlobalsPerTemplate(Integer.parseInt(value));
+    } else if ("seed".equals(name)) {
+      setSeed(Long.parseLong(value));
+    } else {
+      throw new IllegalArgumentException("Unknown corpus setting: " + name);
+    }
+  }
+
+  /**
+   * Gets the compile-time globals the corpus references, to configure the plugin with.
+   *
+   * @return The values of the globals, by name.
+   */
+  public Map<String, String> getGlobals() {
+    Map<String, String> globals = new TreeMap<String, String>();
+    for (int g = 0; g < mGlobals; g++) {
+      globals.put(getGlobalName(g), "Global " + g);
+    }
+    return globals;
+  }
+
+  /**
+   * Writes the corpus.
+   *
+   * @param directory The directory to write the soy files to.
+   * @return The soy files, in the order they were written.
+   * @throws IOException If a file cannot be written.
+   */
+  public List<File> write(File directory) throws IOException {
+    List<File> soyFiles = new ArrayList<File>(mFiles);
+    for (int i = 0; i < mFiles; i++) {
+      File soyFile = new File(directory, "d" + i / FILES_PER_DIRECTORY + "/f" + i + ".soy");
+      FileUtils.writeStringToFile(soyFile, getSource(i), "UTF-8");
+      soyFiles.add(soyFile);
+    }
+    return soyFiles;
+  }
+
+  /**
+   * Gets the source of a soy file of the corpus.
+   *
+   * @param file The index of the file.
+   * @return The soy source.
+   */
+  private String getSource(int file) {
+    // Each file gets its own sequence of choices, so it does not depend on the files after it.
+    Random random = new Random(mSeed * 1000003L + file);
+    StringBuilder source = new StringBuilder()
+        .append("{namespace ").append(getNamespace(file)).append("}\n");
+
+    for (int t = 0; t < mTemplatesPerFile; t++) {
+      appendSoyDoc(source, "Template " + t + " of file " + file + ".");
+      source.append("{template .").append(getTemplateName(file, t)).append("}\n");
+      appendBody(source, "f" + file + "-t" + t, random);
+      if (file > 0) {
+        for (int c = 0; c < mCallsPerTemplate; c++) {
+          int callee = random.nextInt(file);
+          source.append("    {call ").append(getNamespace(callee)).append('.')
+              .append(getTemplateName(callee, random.nextInt(mTemplatesPerFile)))
+              .append(" data=\"all\" /}\n");
+        }
+        if (0 == t && mDelTemplatesPerFile > 0) {
+          source.append("    {delcall ")
+              .append(getDelTemplateName(random.nextInt(file),
+                  random.nextInt(mDelTemplatesPerFile)))
+              .append(" data=\"all\" /}\n");
+        }
+      }
+      source.append("  </div>\n")
+          .append("{/template}\n");
+    }
+
+    for (int d = 0; d < mDelTemplatesPerFile; d++) {
+      appendSoyDoc(source, "Deltemplate " + d + " of file " + file + ".");
+      source.append("{deltemplate ").append(getDelTemplateName(file, d)).append("}\n");
+      appendBody(source, "f" + file + "-d" + d, random);
+      source.append("  </div>\n")
+          .append("{/deltemplate}\n");
+    }
+    return source.toString();
+  }
+
+  /**
+   * Appends the SoyDoc of a template, which declares the parameters every template takes.
+   *
+   * @param source The source to append to.
+   * @param summary The first line of the SoyDoc.
+   */
+  private static void appendSoyDoc(StringBuilder source, String summary) {
+    source.append("\n/**\n")
+        .append(" * ").append(summary).append('\n')
+        .append(" * @param? name The name to greet.\n")
+        .append(" * @param? items The items to list.\n")
+        .append(" */\n");
+  }
+
+  /**
+   * Appends the body of a template, up to its calls, inside an open <code>div</code>.
+   *
+   * @param source The source to append to.
+   * @param id The CSS class of the div, which identifies the template.
+   * @param random Chooses the globals to print.
+   */
+  private void appendBody(StringBuilder source, String id, Random random) {
+    source.append("  <div class=\"").append(id).append("\">\n");
+    for (int m = 0; m < mMsgsPerTemplate; m++) {
+      source.append("    {msg desc=\"Message ").append(m).append(" of ").append(id)
+          .append(".\"}Hello {$name}, this is message ").append(m).append(" of ").append(id)
+          .append(".{/msg}\n");
+    }
+    source.append("    {if $items and length($items) > 2}\n")
+        .append("      <ul>{foreach $item in $items}<li>{$item}</li>{/foreach}</ul>\n")
+        .append("    {/if}\n");
+    if (mGlobals > 0) {
+      for (int g = 0; g < mGlobalsPerTemplate; g++) {
+        source.append("    <span>{").append(getGlobalName(random.nextInt(mGlobals)))
+            .append("}</span>\n");
+      }
+    }
+  }
+
+  /**
+   * Gets the namespace of a file.
+   *
+   * @param file The index of the file.
+   * @return The namespace.
+   */
+  private String getNamespace(int file) {
+    if (0 == mNamespaces || mNamespaces >= mFiles) {
+      return "bench.ns" + file;
+    }
+    return "bench.ns" + (int) ((long) file * mNamespaces / mFiles);
+  }
+
+  /**
+   * Gets the name of a template, without its namespace. Names include the file, so they stay
+   * unique when files share a namespace.
+   *
+   * @param file The index of the file.
+   * @param template The index of the template in the file.
+   * @return The name of the template.
+   */
+  private static String getTemplateName(int file, int template) {
+    return "f" + file + "t" + template;
+  }
+
+  /**
+   * Gets the name of a deltemplate.
+   *
+   * @param file The index of the file.
+   * @param delTemplate The index of the deltemplate in the file.
+   * @return The name of the deltemplate.
+   */
+  private static String getDelTemplateName(int file, int delTemplate) {
+    return "bench.del.f" + file + "d" + delTemplate;
+  }
+
+  /**
+   * Gets the name of a compile-time global.
+   *
+   * @param global The index of the global.
+   * @return The name of the global.
+   */
+  private static String getGlobalName(int global) {
+    return "bench.globals.G" + global;
+  }
+
+  /**
+   * Writes a corpus, and the compile-time globals it references.
+   *
+   * @param args The directory to write to, then any settings, as NAME=VALUE.
+   * @throws IOException If the corpus cannot be written.
+   */
+  public static void main(String[] args) throws IOException {
+    if (0 == args.length) {
+      System.err.println("Usage: SoyCorpus DIRECTORY [NAME=VALUE...]");
+      System.err.println("Settings: files, namespaces, templatesPerFile, callsPerTemplate,"
+          + " delTemplatesPerFile, msgsPerTemplate, globals, globalsPerTemplate, seed.");
+      System.exit(1);
+    }
+    SoyCorpus corpus = new SoyCorpus();
+    for (int i = 1; i < args.length; i++) {
+      int equals = args[i].indexOf('=');
+      if (equals < 0) {
+        throw new IllegalArgumentException("Expected NAME=VALUE: " + args[i]);
+      }
+      corpus.set(args[i].substring(0, equals), args[i].substring(equals + 1));
+    }
+
+    File directory = new File(args[0]);
+    List<File> soyFiles = corpus.write(directory);
+    StringBuilder globals = new StringBuilder("<globals>\n");
+    for (Map.Entry<String, String> global : corpus.getGlobals().entrySet()) {
+      globals.append("  <").append(global.getKey()).append('>').append(global.getValue())
+          .append("</").append(global.getKey()).append(">\n");
+    }
+    globals.append("</globals>\n");
+    FileUtils.writeStringToFile(new File(directory, "globals.xml"), globals.toString(),
+        "UTF-8");
+    System.out.println("Wrote " + soyFiles.size() + " soy files to " + directory);
+  }
+}
@@ -0,0 +1,400 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The state recorded by one incremental compile for use by the next one.
+ *
+ * <p>For every input file this records the size, modification time and content hash it had
+ * when it was last compiled, along with its {@link SoyFileInfo}, and the hash, size and
+ * modification time of its output. It also records a fingerprint of the compiler options,
+ * since changing any of them invalidates every output.</p>
+ *
+ * <p>The state is stored as a compact binary file, read in one go, so that checking a large
+ * project for changes costs little more than a stat of every file.</p>
+ */
+final class BuildState {
+  /** The first bytes of every state file, "SoyS". */
+  private static final int MAGIC = 0x536f7953;
+
+  /** The version of the state file format, used to detect incompatible formats. */
+  private static final int VERSION = 2;
+
+  /** The encoding of strings in the state file. */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** A fingerprint of the compiler options used. */
+  private final String mOptionsFingerprint;
+
+  /** The recorded input files, keyed by path relative to the input directory. */
+  private final SortedMap<String, Entry> mEntries = new TreeMap<String, Entry>();
+
+  /** The recorded state of a single input file and its output. */
+  static final class Entry {
+    /** The size of the file in bytes. */
+    private final long mLength;
+
+    /** The modification time of the file. */
+    private final long mLastModified;
+
+    /** A hex digest of the bytes of the file. */
+    private final String mHash;
+
+    /** The dependency information for the file. */
+    private final SoyFileInfo mInfo;
+
+    /** A hex digest of the bytes of the output, or the empty string if not known. */
+    private final String mOutputHash;
+
+    /** The size of the output in bytes. */
+    private final long mOutputLength;
+
+    /** The modification time of the output. */
+    private final long mOutputLastModified;
+
+    /**
+     * Constructs an Entry with no recorded output.
+     *
+     * @param length The size of the file in bytes.
+     * @param lastModified The modification time of the file.
+     * @param hash A hex digest of the bytes of the file.
+     * @param info The dependency information for the file.
+     */
+    Entry(long length, long lastModified, String hash, SoyFileInfo info) {
+      this(length, lastModified, hash, info, "", 0L, 0L);
+    }
+
+    /**
+     * Constructs an Entry.
+     *
+     * @param length The size of the file in bytes.
+     * @param lastModified The modification time of the file.
+     * @param hash A hex digest of the bytes of the file.
+     * @param info The dependency information for the file.
+     * @param outputHash A hex digest of the bytes of the output, or the empty string.
+     * @param outputLength The size of the output in bytes.
+     * @param outputLastModified The modification time of the output.
+     */
+    private Entry(long length, long lastModified, String hash, SoyFileInfo info,
+        String outputHash, long outputLength, long outputLastModified) {
+      mLength = length;
+      mLastModified = lastModified;
+      mHash = hash;
+      mInfo = info;
+      mOutputHash = outputHash;
+      mOutputLength = outputLength;
+      mOutputLastModified = outputLastModified;
+    }
+
+    /**
+     * Creates a copy of this entry with a different output.
+     *
+     * @param outputHash A hex digest of the bytes of the output.
+     * @param outputFile The output, as it is on disk now.
+     * @return The new entry.
+     */
+    public Entry withOutput(String outputHash, File outputFile) {
+      return new Entry(mLength, mLastModified, mHash, mInfo,
+          outputHash, outputFile.length(), outputFile.lastModified());
+    }
+
+    /**
+     * Creates a copy of this entry with the output recorded in another entry.
+     *
+     * @param other The entry to take the output from.
+     * @return The new entry.
+     */
+    public Entry withOutput(Entry other) {
+      return new Entry(mLength, mLastModified, mHash, mInfo,
+          other.mOutputHash, other.mOutputLength, other.mOutputLastModified);
+    }
+
+    /**
+     * Determines whether a file still looks the way it did when this entry was recorded.
+     *
+     * @param input The file as found by the current build.
+     * @return Whether the file's size and modification time are unchanged.
+     */
+    public boolean isUpToDate(InputScanner.InputFile input) {
+      return input.getLength() == mLength && input.getLastModified() == mLastModified;
+    }
+
+    /**
+     * Determines whether the output still looks the way it did when this entry was recorded.
+     *
+     * @param outputFile The output file on disk.
+     * @return Whether the output exists, with the recorded size and modification time if they
+     *     are known.
+     */
+    public boolean isOutputUpToDate(File outputFile) {
+      if (mOutputHash.isEmpty()) {
+        return outputFile.isFile();
+      }
+      return outputFile.length() == mOutputLength
+          && outputFile.lastModified() == mOutputLastModified;
+    }
+
+    /**
+     * Gets a digest of the bytes of the file.
+     *
+     * @return A hex digest.
+     */
+    public String getHash() {
+      return mHash;
+    }
+
+    /**
+     * Gets a digest of the bytes of the output.
+     *
+     * @return A hex digest, or the empty string if not known.
+     */
+    public String getOutputHash() {
+      return mOutputHash;
+    }
+
+    /**
+     * Gets the dependency information for the file.
+     *
+     * @return The dependency information.
+     */
+    public SoyFileInfo getInfo() {
+      return mInfo;
+    }
+  }
+
+  /**
+   * Constructs an empty BuildState.
+   *
+   * @param optionsFingerprint A fingerprint of the compiler options used.
+   */
+  BuildState(String optionsFingerprint) {
+    mOptionsFingerprint = optionsFingerprint;
+  }
+
+  /**
+   * Gets the fingerprint of the compiler options used.
+   *
+   * @return The options fingerprint.
+   */
+  public String getOptionsFingerprint() {
+    return mOptionsFingerprint;
+  }
+
+  /**
+   * Records the state of an input file.
+   *
+   * @param path The path of the file relative to the input directory.
+   * @param entry The state of the file.
+   */
+  public synchronized void put(String path, Entry entry) {
+    mEntries.put(path, entry);
+  }
+
+  /**
+   * Gets the recorded state of an input file.
+   *
+   * @param path The path of the file relative to the input directory.
+   * @return The recorded state, or null if the file was not recorded.
+   */
+  public synchronized Entry get(String path) {
+    return mEntries.get(path);
+  }
+
+  /**
+   * Gets the paths of all recorded input files.
+   *
+   * @return The relative paths, in sorted order.
+   */
+  public Collection<String> getPaths() {
+    return mEntries.keySet();
+  }
+
+  /**
+   * Gets the dependency information of all recorded input files.
+   *
+   * @return The dependency information, keyed by relative path.
+   */
+  public Map<String, SoyFileInfo> getFileInfos() {
+    Map<String, SoyFileInfo> infos = new HashMap<String, SoyFileInfo>();
+    for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+      infos.put(entry.getKey(), entry.getValue().getInfo());
+    }
+    return infos;
+  }
+
+  /**
+   * Reads a state file.
+   *
+   * @param file The state file.
+   * @return The recorded state, or null if there is no usable state file.
+   */
+  public static BuildState load(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      // Read rather than mapped: everything is copied out anyway, and a mapping would keep the
+      // file open until garbage collection, which stops save() replacing it on Windows.
+      ByteBuffer buffer = ByteBuffer.wrap(FileUtils.readFileToByteArray(file));
+      if (MAGIC != buffer.getInt() || VERSION != buffer.getInt()) {
+        return null;
+      }
+      BuildState state = new BuildState(readString(buffer));
+      for (int i = buffer.getInt(); i > 0; i--) {
+        String path = readString(buffer);
+        long length = buffer.getLong();
+        long lastModified = buffer.getLong();
+        String hash = readString(buffer);
+        String outputHash = readString(buffer);
+        long outputLength = buffer.getLong();
+        long outputLastModified = buffer.getLong();
+        SoyFileInfo info = new SoyFileInfo(readString(buffer), readStrings(buffer),
+            readStrings(buffer), readStrings(buffer), readStrings(buffer));
+        state.put(path, new Entry(length, lastModified, hash, info,
+            outputHash, outputLength, outputLastModified));
+      }
+      return state;
+    } catch (IOException e) {
+      return null;
+    } catch (BufferUnderflowException e) {
+      // A truncated or corrupt state file.
+      return null;
+    }
+  }
+
+  /**
+   * Writes this state to a file, replacing any previous contents.
+   *
+   * <p>The state is written to a temporary file that then replaces the state file, so a build
+   * that is interrupted while saving leaves the previous state intact.</p>
+   *
+   * @param file The state file.
+   * @throws IOException If the file cannot be written.
+   */
+  public void save(File file) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeString(out, mOptionsFingerprint);
+      out.writeInt(mEntries.size());
+      for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+        Entry value = entry.getValue();
+        SoyFileInfo info = value.getInfo();
+        writeString(out, entry.getKey());
+        out.writeLong(value.mLength);
+        out.writeLong(value.mLastModified);
+        writeString(out, value.mHash);
+        writeString(out, value.mOutputHash);
+        out.writeLong(value.mOutputLength);
+        out.writeLong(value.mOutputLastModified);
+        writeString(out, info.getNamespace());
+        writeStrings(out, info.getTemplates());
+        writeStrings(out, info.getDelTemplates());
+        writeStrings(out, info.getCalls());
+        writeStrings(out, info.getDelCalls());
+      }
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      FileUtils.deleteQuietly(file);
+      if (!temp.renameTo(file)) {
+        throw new IOException("Unable to replace " + file);
+      }
+    }
+  }
+
+  /**
+   * Reads a length-prefixed UTF-8 string.
+   *
+   * @param buffer The buffer to read from.
+   * @return The string.
+   */
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Reads a count-prefixed list of strings.
+   *
+   * @param buffer The buffer to read from.
+   * @return The strings.
+   */
+  private static SortedSet<String> readStrings(ByteBuffer buffer) {
+    SortedSet<String> strings = new TreeSet<String>();
+    for (int i = buffer.getInt(); i > 0; i--) {
+      strings.add(readString(buffer));
+    }
+    return strings;
+  }
+
+  /**
+   * Writes a length-prefixed UTF-8 string.
+   *
+   * @param out The stream to write to.
+   * @param string The string.
+   * @throws IOException If the string cannot be written.
+   */
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Writes a count-prefixed list of strings.
+   *
+   * @param out The stream to write to.
+   * @param strings The strings.
+   * @throws IOException If the strings cannot be written.
+   */
+  private static void writeStrings(DataOutputStream out, Collection<String> strings)
+      throws IOException {
+    out.writeInt(strings.size());
+    for (String string : strings) {
+      writeString(out, string);
+    }
+  }
+}
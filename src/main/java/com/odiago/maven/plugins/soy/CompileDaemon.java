@@ -0,0 +1,229 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.template.soy.base.SoySyntaxException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A long-lived local process that compiles soy file sets for the compile goal, so that builds
+ * do not pay for JVM startup, class loading and JIT warm-up of the soy compiler every time.
+ *
+ * <p>The daemon listens on a loopback port and advertises it, along with a random token, in a
+ * port file in a directory that only the current user can use. Each connection starts with
+ * the client presenting the token, and the daemon proving that it knows the token too by
+ * answering a challenge from the client, so neither side can be impersonated by another
+ * local user. The connection then carries one {@link CompileRequest}, answered with a status
+ * and either the compiled javascript of each source or an error message. The daemon exits
+ * after it has been idle for a configured time.</p>
+ *
+ * <p>Nothing depends on the daemon for correctness: if it cannot be reached, or fails, the
+ * compile goal compiles in its own JVM instead.</p>
+ */
+public final class CompileDaemon {
+  /** How often, in milliseconds, the daemon checks whether it has been idle too long. */
+  private static final int ACCEPT_TIMEOUT_MILLIS = 1000;
+
+  /** The token clients must present. */
+  private final String mToken;
+
+  /** The idle time after which the daemon exits, in milliseconds. */
+  private final long mIdleTimeoutMillis;
+
+  /** The number of requests being handled. */
+  private final AtomicInteger mActiveRequests = new AtomicInteger();
+
+  /** The time the last request finished. */
+  private final AtomicLong mLastActive = new AtomicLong(System.currentTimeMillis());
+
+  /**
+   * Constructs a CompileDaemon.
+   *
+   * @param token The token clients must present.
+   * @param idleTimeoutMillis The idle time after which the daemon exits, in milliseconds.
+   */
+  private CompileDaemon(String token, long idleTimeoutMillis) {
+    mToken = token;
+    mIdleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  /**
+   * Runs a daemon.
+   *
+   * @param args The port file to advertise on, and the idle timeout in milliseconds.
+   * @throws IOException If the daemon cannot listen or advertise its port.
+   */
+  public static void main(String[] args) throws IOException {
+    File portFile = new File(args[0]);
+    long idleTimeoutMillis = Long.parseLong(args[1]);
+
+    byte[] tokenBytes = new byte[16];
+    new SecureRandom().nextBytes(tokenBytes);
+    CompileDaemon daemon = new CompileDaemon(Fingerprint.toHex(tokenBytes), idleTimeoutMillis);
+
+    ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+    try {
+      daemon.advertise(portFile, serverSocket.getLocalPort());
+      daemon.serve(serverSocket);
+    } finally {
+      serverSocket.close();
+      // Only remove the port file if a newer daemon has not replaced it.
+      if (portFile.isFile() && FileUtils.readFileToString(portFile, "UTF-8")
+          .endsWith(" " + daemon.mToken)) {
+        FileUtils.deleteQuietly(portFile);
+      }
+    }
+  }
+
+  /**
+   * Writes the port file, atomically and readable only by the current user.
+   *
+   * @param portFile The port file.
+   * @param port The port the daemon listens on.
+   * @throws IOException If the port file cannot be written.
+   */
+  private void advertise(File portFile, int port) throws IOException {
+    File temp = new File(portFile.getPath() + ".tmp");
+    FileUtils.touch(temp);
+    if (!(temp.setReadable(false, false) && temp.setReadable(true, true))) {
+      throw new IOException("Unable to restrict access to " + temp);
+    }
+    FileUtils.writeStringToFile(temp, port + " " + mToken, "UTF-8");
+    if (!temp.renameTo(portFile)) {
+      FileUtils.deleteQuietly(portFile);
+      if (!temp.renameTo(portFile)) {
+        throw new IOException("Unable to write port file " + portFile);
+      }
+    }
+  }
+
+  /**
+   * Answers a client's challenge, which proves that the daemon knows the token without
+   * revealing it.
+   *
+   * @param token The token.
+   * @param challenge The challenge.
+   * @return The answer, as hex.
+   * @throws IOException If the challenge cannot be encoded.
+   */
+  static String prove(String token, String challenge) throws IOException {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(token.getBytes("UTF-8"), "HmacSHA256"));
+      return Fingerprint.toHex(mac.doFinal(challenge.getBytes("UTF-8")));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("HmacSHA256 is required by every Java platform.", e);
+    }
+  }
+
+  /**
+   * Accepts connections until the daemon has been idle for too long.
+   *
+   * @param serverSocket The socket to accept connections on.
+   * @throws IOException If the socket fails.
+   */
+  private void serve(ServerSocket serverSocket) throws IOException {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+    try {
+      while (mActiveRequests.get() > 0
+          || System.currentTimeMillis() - mLastActive.get() < mIdleTimeoutMillis) {
+        final Socket socket;
+        try {
+          socket = serverSocket.accept();
+        } catch (SocketTimeoutException e) {
+          continue;
+        }
+        mActiveRequests.incrementAndGet();
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              handle(socket);
+            } finally {
+              mLastActive.set(System.currentTimeMillis());
+              mActiveRequests.decrementAndGet();
+            }
+          }
+        });
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Handles one connection.
+   *
+   * @param socket The connected socket.
+   */
+  private void handle(Socket socket) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      if (!MessageDigest.isEqual(mToken.getBytes("UTF-8"), in.readUTF().getBytes("UTF-8"))) {
+        return;
+      }
+      out.writeUTF(prove(mToken, in.readUTF()));
+      out.flush();
+      try {
+        List<String> srcs = CompileRequest.read(in).compile();
+        out.writeByte(CompileRequest.STATUS_OK);
+        out.writeInt(srcs.size());
+        for (String src : srcs) {
+          CompileRequest.writeLongString(out, src);
+        }
+      } catch (SoySyntaxException e) {
+        out.writeByte(CompileRequest.STATUS_SOY_ERROR);
+        CompileRequest.writeLongString(out, String.valueOf(e.getMessage()));
+      } catch (Throwable e) {
+        // Report anything, including linkage errors, so the client falls back at once.
+        out.writeByte(CompileRequest.STATUS_FAILED);
+        CompileRequest.writeLongString(out, e.toString());
+      }
+      out.flush();
+    } catch (IOException e) {
+      System.err.println("Unable to handle compile request: " + e);
+    } finally {
+      IOUtils.closeQuietly(socket);
+    }
+  }
+}
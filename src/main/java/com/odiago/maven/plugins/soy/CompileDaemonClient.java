@@ -0,0 +1,309 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Sends compile requests to a {@link CompileDaemon}, starting one if none is running.
+ *
+ * <p>Daemons are identified by the classpath of the plugin, so a build only ever talks to a
+ * daemon running the same plugin, soy compiler and plugin module versions.</p>
+ *
+ * <p>The port files decide which process is trusted to compile, so they are kept in a
+ * directory that must belong to the current user and that only the current user may use. A
+ * daemon must also answer a fresh challenge with the token from its port file before it is
+ * sent anything, in case another process has taken over the port of a daemon that died.</p>
+ */
+final class CompileDaemonClient {
+  /** How long to wait for a newly started daemon to advertise its port, in milliseconds. */
+  private static final long STARTUP_TIMEOUT_MILLIS = 30000;
+
+  /** How often to check whether a newly started daemon has advertised its port. */
+  private static final long STARTUP_POLL_MILLIS = 50;
+
+  /** How long to wait for a daemon to answer the challenge, in milliseconds. */
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+  /** The permissions of the directory holding port files, on file systems that have them. */
+  private static final Set<PosixFilePermission> PRIVATE_DIRECTORY =
+      PosixFilePermissions.fromString("rwx------");
+
+  /** Generates challenges. */
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /** The directory holding port files and daemon logs. */
+  private final File mDirectory;
+
+  /** The idle time after which a daemon started by this client exits, in milliseconds. */
+  private final long mIdleTimeoutMillis;
+
+  /** The classpath to start daemons with. */
+  private final String mClasspath;
+
+  /** The identity of daemons running with this classpath. */
+  private final String mKey;
+
+  /**
+   * Constructs a CompileDaemonClient that starts daemons with the classpath of the plugin.
+   *
+   * @param directory The directory holding port files and daemon logs.
+   * @param idleTimeoutMillis The idle time after which a started daemon exits.
+   * @throws IOException If the classpath of the plugin cannot be determined.
+   */
+  CompileDaemonClient(File directory, long idleTimeoutMillis) throws IOException {
+    this(directory, idleTimeoutMillis, getPluginClasspath());
+  }
+
+  /**
+   * Constructs a CompileDaemonClient.
+   *
+   * @param directory The directory holding port files and daemon logs.
+   * @param idleTimeoutMillis The idle time after which a started daemon exits.
+   * @param classpath The classpath to start daemons with.
+   */
+  CompileDaemonClient(File directory, long idleTimeoutMillis, List<File> classpath) {
+    mDirectory = directory;
+    mIdleTimeoutMillis = idleTimeoutMillis;
+
+    Fingerprint key = new Fingerprint().add(System.getProperty("java.home"));
+    StringBuilder path = new StringBuilder();
+    for (File file : classpath) {
+      if (path.length() > 0) {
+        path.append(File.pathSeparatorChar);
+      }
+      path.append(file.getPath());
+      key.add(file.getPath()).add(String.valueOf(file.lastModified()));
+    }
+    mClasspath = path.toString();
+    mKey = key.toHex();
+  }
+
+  /**
+   * Gets the classpath of the plugin. It lacks the maven API, which maven provides to plugins
+   * itself, so nothing the daemon runs may depend on it.
+   *
+   * @return The classpath entries.
+   * @throws IOException If the classpath cannot be determined.
+   */
+  private static List<File> getPluginClasspath() throws IOException {
+    ClassLoader classLoader = CompileDaemonClient.class.getClassLoader();
+    if (!(classLoader instanceof URLClassLoader)) {
+      throw new IOException("Unable to determine the classpath of the soy plugin.");
+    }
+    List<File> classpath = new ArrayList<File>();
+    for (URL url : ((URLClassLoader) classLoader).getURLs()) {
+      File file = FileUtils.toFile(url);
+      if (null == file) {
+        throw new IOException("Unable to start a soy daemon with classpath entry " + url);
+      }
+      classpath.add(file);
+    }
+    return classpath;
+  }
+
+  /**
+   * Gets the port file of daemons running with this client's classpath.
+   *
+   * @return The port file.
+   */
+  private File getPortFile() {
+    return new File(mDirectory, mKey + ".port");
+  }
+
+  /**
+   * Creates the directory holding port files if necessary, and checks that it belongs to the
+   * current user and that no one else may use it.
+   *
+   * @throws IOException If the directory cannot be created, or cannot be trusted.
+   */
+  private void checkDirectory() throws IOException {
+    Path directory = mDirectory.toPath();
+    boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+    if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+      FileUtils.forceMkdir(mDirectory.getAbsoluteFile().getParentFile());
+      try {
+        if (posix) {
+          Files.createDirectory(directory,
+              PosixFilePermissions.asFileAttribute(PRIVATE_DIRECTORY));
+        } else {
+          Files.createDirectory(directory);
+        }
+      } catch (FileAlreadyExistsException e) {
+        // Created by a concurrent build, and checked below like any other.
+      }
+    }
+    if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+      throw new IOException("Not a directory: " + directory);
+    }
+    UserPrincipal owner = Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS);
+    UserPrincipal user = directory.getFileSystem().getUserPrincipalLookupService()
+        .lookupPrincipalByName(System.getProperty("user.name"));
+    if (!owner.equals(user)) {
+      throw new IOException(directory + " belongs to " + owner.getName() + ", not "
+          + user.getName() + ".");
+    }
+    if (posix && !PRIVATE_DIRECTORY.equals(
+        Files.getPosixFilePermissions(directory, LinkOption.NOFOLLOW_LINKS))) {
+      Files.setPosixFilePermissions(directory, PRIVATE_DIRECTORY);
+    }
+  }
+
+  /**
+   * Connects to the advertised daemon, and checks that it knows the advertised token.
+   *
+   * @return A socket connected to the daemon, with the handshake done, or null if no daemon
+   *     could be reached.
+   */
+  private Socket connect() {
+    Socket socket = null;
+    try {
+      File portFile = getPortFile();
+      if (!portFile.isFile()) {
+        return null;
+      }
+      String[] advertisement = FileUtils.readFileToString(portFile, "UTF-8").trim().split(" ");
+      byte[] challengeBytes = new byte[16];
+      RANDOM.nextBytes(challengeBytes);
+      String challenge = Fingerprint.toHex(challengeBytes);
+
+      socket = new Socket(InetAddress.getByName(null), Integer.parseInt(advertisement[0]));
+      socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeUTF(advertisement[1]);
+      out.writeUTF(challenge);
+      out.flush();
+      // Not buffered, so nothing after the answer is read from the socket yet.
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      if (!CompileDaemon.prove(advertisement[1], challenge).equals(in.readUTF())) {
+        IOUtils.closeQuietly(socket);
+        return null;
+      }
+      socket.setSoTimeout(0);
+      return socket;
+    } catch (IOException e) {
+      IOUtils.closeQuietly(socket);
+      return null;
+    } catch (RuntimeException e) {
+      // A partially written or corrupt port file.
+      IOUtils.closeQuietly(socket);
+      return null;
+    }
+  }
+
+  /**
+   * Connects to the advertised daemon, starting one if none can be reached.
+   *
+   * @return A socket connected to the daemon, with the handshake done.
+   * @throws IOException If no daemon could be started.
+   */
+  private synchronized Socket connectOrStart() throws IOException {
+    checkDirectory();
+    Socket socket = connect();
+    if (null != socket) {
+      return socket;
+    }
+
+    FileUtils.deleteQuietly(getPortFile());
+    List<String> command = new ArrayList<String>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    command.add("-cp");
+    command.add(mClasspath);
+    command.add(CompileDaemon.class.getName());
+    command.add(getPortFile().getPath());
+    command.add(String.valueOf(mIdleTimeoutMillis));
+    File log = new File(mDirectory, mKey + ".log");
+    new ProcessBuilder(command)
+        .redirectErrorStream(true)
+        .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+        .start();
+
+    long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+    while (System.currentTimeMillis() < deadline) {
+      socket = connect();
+      if (null != socket) {
+        return socket;
+      }
+      try {
+        Thread.sleep(STARTUP_POLL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    throw new IOException("The soy daemon did not start. See " + log);
+  }
+
+  /**
+   * Compiles soy files in a daemon.
+   *
+   * @param request The compile request.
+   * @return The compiled javascript of each source, in the order of the sources, or null if
+   *     the soy files do not compile.
+   * @throws IOException If the daemon cannot be reached or fails to handle the request.
+   */
+  public List<String> compile(CompileRequest request) throws IOException {
+    Socket socket = connectOrStart();
+    try {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      request.write(out);
+      out.flush();
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      byte status = in.readByte();
+      if (CompileRequest.STATUS_SOY_ERROR == status) {
+        return null;
+      }
+      if (CompileRequest.STATUS_OK != status) {
+        throw new IOException(CompileRequest.readLongString(in));
+      }
+      int size = in.readInt();
+      List<String> srcs = new ArrayList<String>(size);
+      for (int i = 0; i < size; i++) {
+        srcs.add(CompileRequest.readLongString(in));
+      }
+      return srcs;
+    } finally {
+      IOUtils.closeQuietly(socket);
+    }
+  }
+}
@@ -0,0 +1,491 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The time and memory a compile spent in each of its phases, reported as JSON.
+ *
+ * <p>Each phase records the wall time, the CPU time and the bytes allocated by the threads that
+ * worked on it, summed across threads, so phases that overlap or run in parallel may add up to
+ * more than the wall time of the whole compile. CPU time and allocation are measured with the
+ * {@link ThreadMXBean} of the JVM, and reported as null for a phase if any of its work ran on a
+ * thread it cannot measure them on, such as a virtual thread. The slowest files and compiles are
+ * kept as well, to show where the time went.</p>
+ */
+final class CompileMetrics {
+  /** The version of the report format, bumped whenever it changes incompatibly. */
+  static final int FORMAT_VERSION = 2;
+
+  /** A measurement that is not available on the current thread. */
+  private static final long UNAVAILABLE = -1L;
+
+  /** The thread management interface of the JVM. */
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  /** Whether the CPU time of the current thread can be measured. */
+  private static final boolean CPU_TIME_SUPPORTED =
+      THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+
+  /** Whether the bytes allocated by a thread can be measured. */
+  private static final boolean ALLOCATION_SUPPORTED = isAllocationSupported();
+
+  /** A phase of a compile. */
+  enum Phase {
+    /** Finding the input soy files. */
+    SCAN,
+
+    /** Reading soy files, or getting them from the source cache. */
+    READ,
+
+    /** Building the call graph and splitting the compile into partitions. */
+    PLAN,
+
+    /**
+     * Parsing, checking and generating javascript for soy files, which the soy compiler does
+     * in a single call, and encoding the javascript.
+     */
+    COMPILE,
+
+    /** Comparing outputs with the existing files, and writing the ones that changed. */
+    WRITE;
+
+    /**
+     * Gets the name of the phase in the report.
+     *
+     * @return The name, in lower case.
+     */
+    public String getName() {
+      return name().toLowerCase(Locale.ENGLISH);
+    }
+  }
+
+  /** The measurements of the current thread when some work started. */
+  static final class Sample {
+    /** The wall clock, in nanoseconds. */
+    private final long mWallNanos = System.nanoTime();
+
+    /** The CPU time of the thread, in nanoseconds. */
+    private final long mCpuNanos = getCpuNanos();
+
+    /** The bytes allocated by the thread. */
+    private final long mAllocatedBytes = getAllocatedBytes();
+  }
+
+  /** The totals of one phase. */
+  private static final class PhaseTotals {
+    /** The number of times work was measured. */
+    private final AtomicLong mCount = new AtomicLong();
+
+    /** The wall time, in nanoseconds. */
+    private final AtomicLong mWallNanos = new AtomicLong();
+
+    /** The CPU time, in nanoseconds. */
+    private final AtomicLong mCpuNanos = new AtomicLong();
+
+    /** The bytes allocated. */
+    private final AtomicLong mAllocatedBytes = new AtomicLong();
+
+    /** Whether the CPU time of some of the work could not be measured. */
+    private volatile boolean mCpuUnavailable;
+
+    /** Whether the allocation of some of the work could not be measured. */
+    private volatile boolean mAllocationUnavailable;
+  }
+
+  /** One of the slowest pieces of work. */
+  private static final class Slow implements Comparable<Slow> {
+    /** The wall time, in nanoseconds. */
+    private final long mNanos;
+
+    /** The fields describing the work, in the order they are reported. */
+    private final Map<String, Object> mFields;
+
+    /**
+     * Constructs a Slow.
+     *
+     * @param nanos The wall time, in nanoseconds.
+     * @param fields The fields describing the work.
+     */
+    Slow(long nanos, Map<String, Object> fields) {
+      mNanos = nanos;
+      mFields = fields;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int compareTo(Slow other) {
+      return mNanos < other.mNanos ? -1 : (mNanos == other.mNanos ? 0 : 1);
+    }
+  }
+
+  /** The number of slowest files and compiles to keep. */
+  private final int mSlowest;
+
+  /** When the compile started. */
+  private final Date mStarted = new Date();
+
+  /** When the compile started, from {@link System#nanoTime()}. */
+  private final long mStartNanos = System.nanoTime();
+
+  /** The totals of each phase. */
+  private final Map<Phase, PhaseTotals> mPhases = new EnumMap<Phase, PhaseTotals>(Phase.class);
+
+  /** The counts describing the compile, in the order they are reported. */
+  private final Map<String, Long> mCounts = new LinkedHashMap<String, Long>();
+
+  /** The slowest files to read or write, fastest first. */
+  private final PriorityQueue<Slow> mSlowestFiles = new PriorityQueue<Slow>();
+
+  /** The slowest compiles, fastest first. */
+  private final PriorityQueue<Slow> mSlowestCompiles = new PriorityQueue<Slow>();
+
+  /**
+   * Constructs a CompileMetrics, starting the clock.
+   *
+   * @param slowest The number of slowest files and compiles to keep.
+   */
+  CompileMetrics(int slowest) {
+    mSlowest = Math.max(0, slowest);
+    for (Phase phase : Phase.values()) {
+      mPhases.put(phase, new PhaseTotals());
+    }
+  }
+
+  /**
+   * Determines whether the JVM can measure the bytes allocated by a thread.
+   *
+   * @return Whether allocation can be measured.
+   */
+  private static boolean isAllocationSupported() {
+    try {
+      // Only HotSpot and compatible JVMs have this extension.
+      return THREADS instanceof com.sun.management.ThreadMXBean
+          && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+          && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+    } catch (LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * Gets the CPU time of the current thread.
+   *
+   * @return A number of nanoseconds, or {@link #UNAVAILABLE} if it cannot be measured.
+   */
+  private static long getCpuNanos() {
+    // The JVM measures platform threads only, and returns -1 on a virtual thread.
+    return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : UNAVAILABLE;
+  }
+
+  /**
+   * Gets the bytes allocated by the current thread.
+   *
+   * @return A number of bytes, or {@link #UNAVAILABLE} if it cannot be measured.
+   */
+  private static long getAllocatedBytes() {
+    return ALLOCATION_SUPPORTED ? ((com.sun.management.ThreadMXBean) THREADS)
+        .getThreadAllocatedBytes(Thread.currentThread().getId()) : UNAVAILABLE;
+  }
+
+  /**
+   * Adds the difference between two measurements to a total.
+   *
+   * @param total The total.
+   * @param start The measurement when the work started.
+   * @param end The measurement when the work stopped.
+   * @return Whether both measurements were available.
+   */
+  private static boolean add(AtomicLong total, long start, long end) {
+    if (start < 0 || end < 0) {
+      return false;
+    }
+    total.addAndGet(end - start);
+    return true;
+  }
+
+  /**
+   * Starts measuring work on the current thread.
+   *
+   * @return The measurements to pass to {@link #stop(Phase, Sample)} on the same thread.
+   */
+  public Sample start() {
+    return new Sample();
+  }
+
+  /**
+   * Stops measuring work on the current thread, and adds it to the totals of a phase.
+   *
+   * @param phase The phase the work was part of.
+   * @param sample The measurements from when the work started.
+   * @return The wall time of the work, in nanoseconds.
+   */
+  public long stop(Phase phase, Sample sample) {
+    long wallNanos = System.nanoTime() - sample.mWallNanos;
+    PhaseTotals totals = mPhases.get(phase);
+    totals.mCount.incrementAndGet();
+    totals.mWallNanos.addAndGet(wallNanos);
+    if (!add(totals.mCpuNanos, sample.mCpuNanos, getCpuNanos())) {
+      totals.mCpuUnavailable = true;
+    }
+    if (!add(totals.mAllocatedBytes, sample.mAllocatedBytes, getAllocatedBytes())) {
+      totals.mAllocationUnavailable = true;
+    }
+    return wallNanos;
+  }
+
+  /**
+   * Stops measuring the work on one file, and adds it to the totals of a phase.
+   *
+   * @param phase The phase the work was part of.
+   * @param sample The measurements from when the work started.
+   * @param filename The file, relative to its input directory.
+   */
+  public void stopFile(Phase phase, Sample sample, String filename) {
+    long nanos = stop(phase, sample);
+    Map<String, Object> fields = new LinkedHashMap<String, Object>();
+    fields.put("file", filename);
+    fields.put("phase", phase.getName());
+    fields.put("millis", toMillis(nanos));
+    keep(mSlowestFiles, new Slow(nanos, fields));
+  }
+
+  /**
+   * Stops measuring a compile, and adds it to the totals of the compile phase.
+   *
+   * @param sample The measurements from when the compile started.
+   * @param files The number of soy files compiled.
+   * @param sourceBytes The size of the soy files compiled.
+   * @param firstFilename The first of the soy files, to identify the compile.
+   */
+  public void stopCompile(Sample sample, int files, long sourceBytes, String firstFilename) {
+    long nanos = stop(Phase.COMPILE, sample);
+    Map<String, Object> fields = new LinkedHashMap<String, Object>();
+    fields.put("firstFile", firstFilename);
+    fields.put("files", files);
+    fields.put("sourceBytes", sourceBytes);
+    fields.put("millis", toMillis(nanos));
+    keep(mSlowestCompiles, new Slow(nanos, fields));
+  }
+
+  /**
+   * Keeps a piece of work if it is among the slowest.
+   *
+   * @param slowest The slowest work so far, fastest first.
+   * @param slow The piece of work.
+   */
+  private void keep(PriorityQueue<Slow> slowest, Slow slow) {
+    synchronized (slowest) {
+      slowest.add(slow);
+      if (slowest.size() > mSlowest) {
+        slowest.poll();
+      }
+    }
+  }
+
+  /**
+   * Records a count describing the compile, such as the number of files.
+   *
+   * @param name The name of the count in the report.
+   * @param value The count.
+   */
+  public synchronized void setCount(String name, long value) {
+    mCounts.put(name, value);
+  }
+
+  /**
+   * Gets a count describing the compile.
+   *
+   * @param name The name of the count in the report.
+   * @return The count, or 0 if it was not recorded.
+   */
+  public synchronized long getCount(String name) {
+    Long value = mCounts.get(name);
+    return null == value ? 0 : value;
+  }
+
+  /**
+   * Gets when the compile started.
+   *
+   * @return The time, in ISO 8601 format in UTC.
+   */
+  public String getStarted() {
+    SimpleDateFormat iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+    iso8601.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return iso8601.format(mStarted);
+  }
+
+  /**
+   * Gets the wall time of a phase, summed across threads.
+   *
+   * @param phase The phase.
+   * @return A number of milliseconds.
+   */
+  public long getWallMillis(Phase phase) {
+    return toMillis(mPhases.get(phase).mWallNanos.get());
+  }
+
+  /**
+   * Gets the time since the compile started.
+   *
+   * @return A number of milliseconds.
+   */
+  public long getElapsedMillis() {
+    return toMillis(System.nanoTime() - mStartNanos);
+  }
+
+  /**
+   * Converts nanoseconds to milliseconds.
+   *
+   * @param nanos A number of nanoseconds.
+   * @return The number of whole milliseconds.
+   */
+  private static long toMillis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  /**
+   * Formats the report as JSON.
+   *
+   * @return The report.
+   */
+  public synchronized String toJson() {
+    StringBuilder json = new StringBuilder("{\n");
+    json.append("  \"version\": ").append(FORMAT_VERSION).append(",\n");
+    json.append("  \"started\": ");
+    appendValue(json, getStarted());
+    json.append(",\n  \"wallMillis\": ").append(getElapsedMillis());
+    for (Map.Entry<String, Long> count : mCounts.entrySet()) {
+      json.append(",\n  ");
+      appendValue(json, count.getKey());
+      json.append(": ").append(count.getValue());
+    }
+    json.append(",\n  \"phases\": {");
+    String separator = "\n";
+    for (Map.Entry<Phase, PhaseTotals> phase : mPhases.entrySet()) {
+      PhaseTotals totals = phase.getValue();
+      json.append(separator).append("    \"").append(phase.getKey().getName()).append("\": {")
+          .append("\"count\": ").append(totals.mCount.get())
+          .append(", \"wallMillis\": ").append(toMillis(totals.mWallNanos.get()))
+          .append(", \"cpuMillis\": ")
+          .append(totals.mCpuUnavailable ? "null" : toMillis(totals.mCpuNanos.get()))
+          .append(", \"allocatedBytes\": ")
+          .append(totals.mAllocationUnavailable ? "null" : totals.mAllocatedBytes.get())
+          .append('}');
+      separator = ",\n";
+    }
+    json.append("\n  },\n  \"slowestFiles\": ");
+    appendSlowest(json, mSlowestFiles);
+    json.append(",\n  \"slowestCompiles\": ");
+    appendSlowest(json, mSlowestCompiles);
+    return json.append("\n}\n").toString();
+  }
+
+  /**
+   * Appends the slowest work, slowest first, as a JSON array.
+   *
+   * @param json The JSON to append to.
+   * @param slowest The slowest work, fastest first.
+   */
+  private static void appendSlowest(StringBuilder json, PriorityQueue<Slow> slowest) {
+    List<Slow> sorted;
+    synchronized (slowest) {
+      sorted = new ArrayList<Slow>(slowest);
+    }
+    Collections.sort(sorted, Collections.reverseOrder());
+    json.append('[');
+    String separator = "\n";
+    for (Slow slow : sorted) {
+      json.append(separator).append("    {");
+      String fieldSeparator = "";
+      for (Map.Entry<String, Object> field : slow.mFields.entrySet()) {
+        json.append(fieldSeparator);
+        appendValue(json, field.getKey());
+        json.append(": ");
+        appendValue(json, field.getValue());
+        fieldSeparator = ", ";
+      }
+      json.append('}');
+      separator = ",\n";
+    }
+    json.append(sorted.isEmpty() ? "]" : "\n  ]");
+  }
+
+  /**
+   * Appends a number, or a string as a quoted and escaped JSON string.
+   *
+   * @param json The JSON to append to.
+   * @param value The value.
+   */
+  private static void appendValue(StringBuilder json, Object value) {
+    if (value instanceof Number) {
+      json.append(value);
+      return;
+    }
+    String string = String.valueOf(value);
+    json.append('"');
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if ('"' == c || '\\' == c) {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    json.append('"');
+  }
+
+  /**
+   * Writes the report to a file, replacing it.
+   *
+   * @param file The file.
+   * @throws IOException If the report cannot be written.
+   */
+  public void write(File file) throws IOException {
+    FileUtils.forceMkdir(file.getAbsoluteFile().getParentFile());
+    File temp = new File(file.getPath() + ".tmp");
+    FileUtils.writeStringToFile(temp, toJson(), "UTF-8");
+    if (!temp.renameTo(file)) {
+      FileUtils.deleteQuietly(file);
+      if (!temp.renameTo(file)) {
+        throw new IOException("Unable to write compile metrics: " + file);
+      }
+    }
+  }
+}
@@ -18,20 +18,50 @@
 package com.odiago.maven.plugins.soy;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.google.template.soy.SoyFileSet;
 import com.google.template.soy.jssrc.SoyJsSrcOptions;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.shared.model.fileset.FileSet;
-import org.apache.maven.shared.model.fileset.util.FileSetManager;
+import org.codehaus.plexus.util.Scanner;
+import org.sonatype.plexus.build.incremental.BuildContext;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
 
 /**
  * A maven goal for compiling soy templates (Google Closure Templates) into javascript files.
@@ -40,14 +70,34 @@ import org.apache.maven.shared.model.fileset.util.FileSetManager;
  * @phase process-sources
  */
 public class CompileMojo extends AbstractMojo {
+  /**
+   * A rough estimate of the heap the soy compiler needs per byte of soy source, to hold the
+   * source, its parse tree and the generated javascript.
+   */
+  private static final long HEAP_BYTES_PER_SOURCE_BYTE = 40;
+
+  /**
+   * The number the soy compiler puts in the name of the function generated for a deltemplate,
+   * which is the id of its node in the whole soy file set.
+   */
+  private static final Pattern DEL_TEMPLATE_ID = Pattern.compile("\\.__deltemplate_s(\\d+)_");
+
   /**
    * The soy files to be compiled into javascript files.
    *
    * @parameter property="inputFiles"
-   * @required
    */
   private FileSet mInputFiles;
 
+  /**
+   * Further soy files to be compiled, from other directories. Every directory is scanned
+   * concurrently, and outputs are named by path relative to the directory of their file set,
+   * so the same relative path may not be selected from two directories.
+   *
+   * @parameter property="inputFileSets"
+   */
+  private List<FileSet> mInputFileSets = Collections.emptyList();
+
   /**
    * The target directory for generated javascript files.
    *
@@ -78,6 +128,307 @@ public class CompileMojo extends AbstractMojo {
    */
   private Map<String, String> mCompileTimeGlobals = Collections.emptyMap();
 
+  /**
+   * Whether to only recompile the soy files that changed since the last build, along with the
+   * files that call templates defined in them. Outputs of all other files are left alone.
+   *
+   * @parameter property="incremental" expression="${soy.incremental}" default-value="false"
+   */
+  private boolean mIncremental;
+
+  /**
+   * The directory where the plugin keeps state between builds.
+   *
+   * @parameter property="workDirectory" default-value="${project.build.directory}/soy-maven-plugin"
+   * @required
+   */
+  private File mWorkDirectory;
+
+  /**
+   * Whether to keep a cache of compiled outputs under the work directory, keyed by the contents
+   * of every input file and the compiler options. When the inputs match a cached compile, the
+   * outputs are copied from the cache instead of being compiled.
+   *
+   * @parameter property="cache" expression="${soy.cache}" default-value="false"
+   */
+  private boolean mCache;
+
+  /**
+   * The number of compiles to keep in the output cache.
+   *
+   * @parameter property="cacheSize" expression="${soy.cacheSize}" default-value="10"
+   */
+  private int mCacheSize = 10;
+
+  /**
+   * The number of threads to compile with. Defaults to the number of available processors.
+   *
+   * @parameter property="threads" expression="${soy.threads}"
+   */
+  private int mThreads = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The number of threads that read soy files ahead of the compiler and write outputs behind
+   * it. File I/O is mostly waiting, especially on network file systems, so this may usefully
+   * exceed the number of processors.
+   *
+   * @parameter property="ioThreads" expression="${soy.ioThreads}" default-value="8"
+   */
+  private int mIoThreads = 8;
+
+  /**
+   * The estimated heap, in megabytes, that concurrent compiles may use between them. Defaults
+   * to half of the heap that is free when compilation starts.
+   *
+   * @parameter property="memoryBudget" expression="${soy.memoryBudget}" default-value="0"
+   */
+  private long mMemoryBudget;
+
+  /**
+   * The shortest time, in seconds, between progress reports while soy files are compiled and
+   * written. Set to 0 to disable. The individual files are logged at debug level instead.
+   *
+   * @parameter property="progressInterval" expression="${soy.progressInterval}" default-value="10"
+   */
+  private int mProgressInterval = 10;
+
+  /**
+   * The file to write a report of the time and memory each phase of the compile took to, as
+   * JSON, for build dashboards to collect. No report is written unless it is set.
+   *
+   * @parameter property="metricsFile" expression="${soy.metricsFile}"
+   */
+  private File mMetricsFile;
+
+  /**
+   * The number of slowest files and compiles to list in the metrics report.
+   *
+   * @parameter property="metricsSlowest" expression="${soy.metricsSlowest}" default-value="10"
+   */
+  private int mMetricsSlowest = 10;
+
+  /**
+   * The file to keep the metrics of recent builds in, to compare each build with. No history
+   * is kept, and builds are not checked for regressions, unless it is set. Set it outside the
+   * build directory to keep the history across <code>mvn clean</code>.
+   *
+   * @parameter property="metricsHistory" expression="${soy.metricsHistory}"
+   */
+  private File mMetricsHistory;
+
+  /**
+   * The number of recent builds to keep in the metrics history.
+   *
+   * @parameter property="metricsHistorySize" expression="${soy.metricsHistorySize}" default-value="30"
+   */
+  private int mMetricsHistorySize = 30;
+
+  /**
+   * How much longer than similar recent builds a build may take, or how much larger its
+   * output may be, in percent, before it is reported as a regression. Set to 0 to disable.
+   *
+   * @parameter property="regressionThreshold" expression="${soy.regressionThreshold}" default-value="50"
+   */
+  private int mRegressionThreshold = 50;
+
+  /**
+   * Whether to fail the build on a regression, rather than only warn about it.
+   *
+   * @parameter property="failOnRegression" expression="${soy.failOnRegression}" default-value="false"
+   */
+  private boolean mFailOnRegression;
+
+  /**
+   * Whether to hold the generated javascript outside the Java heap, as UTF-8 in pooled direct
+   * buffers, from when it is generated until it is written. This keeps large outputs from
+   * filling the heap and triggering full garbage collections, at the cost of direct memory,
+   * which is limited by <code>-XX:MaxDirectMemorySize</code>.
+   *
+   * @parameter property="offHeapOutputs" expression="${soy.offHeapOutputs}" default-value="false"
+   */
+  private boolean mOffHeapOutputs;
+
+  /**
+   * The maximum size, in megabytes of characters, of the soy sources kept in memory between
+   * executions of the plugin in the same JVM, such as the modules of a reactor build or
+   * successive builds in a long-lived maven process. Defaults to 0, which disables the cache,
+   * except in the watch goal, which rereads the sources after every change.
+   *
+   * @parameter property="sourceCacheSize" expression="${soy.sourceCacheSize}"
+   */
+  private long mSourceCacheSize;
+
+  /**
+   * The class names of Guice modules that provide custom soy functions and print directives,
+   * in addition to the standard ones. The artifacts containing them must be added as
+   * dependencies of the plugin.
+   *
+   * @parameter property="pluginModules"
+   */
+  private List<String> mPluginModules = Collections.emptyList();
+
+  /**
+   * Whether to compile in a long-lived background process shared by successive builds, which
+   * avoids paying for the startup and warm-up of the soy compiler on every build. The daemon is
+   * started on demand, and the plugin falls back to compiling in the maven process if it
+   * cannot be used.
+   *
+   * @parameter property="daemon" expression="${soy.daemon}" default-value="false"
+   */
+  private boolean mDaemon;
+
+  /**
+   * The number of seconds a compile daemon stays alive without receiving any requests.
+   *
+   * @parameter property="daemonIdleTimeout" expression="${soy.daemonIdleTimeout}" default-value="600"
+   */
+  private long mDaemonIdleTimeout = 600;
+
+  /**
+   * The input soy files found by the current build, keyed by path relative to the directory
+   * of their file set.
+   */
+  private SortedMap<String, InputScanner.InputFile> mInputs;
+
+  /** The state of the current build, or null if it is not tracked. */
+  private BuildState mState;
+
+  /** The input files and state of the last tracked build run by this mojo, or null. */
+  private ContextState mLastBuild;
+
+  /** The client for the compile daemon, or null to compile in this JVM. */
+  private volatile CompileDaemonClient mDaemonClient;
+
+  /**
+   * A git revision, such as <code>origin/master</code>. If set, only the soy files changed in
+   * the local git working tree since it diverged from this revision, along with the files that
+   * call templates defined in them, are compiled. The outputs of all other files are left
+   * alone. The working tree is compared with the local copy of the revision, so it is never
+   * fetched.
+   *
+   * @parameter property="affectedSince" expression="${soy.affectedSince}"
+   */
+  private String mAffectedSince;
+
+  /**
+   * When to force outputs to disk: <code>none</code> leaves it to the operating system,
+   * <code>batch</code> forces every output once they have all been written, and
+   * <code>file</code> forces each output as it is written. Either way, outputs are written to a
+   * temporary file and renamed into place, so a killed build never leaves a truncated output.
+   *
+   * @parameter property="fsync" expression="${soy.fsync}" default-value="none"
+   */
+  private String mFsync = "none";
+
+  /** Writes the outputs of the current build. */
+  private OutputWriter mOutputWriter;
+
+  /**
+   * The build context, which tells builds run by an IDE which files changed, and is told which
+   * outputs were written.
+   *
+   * @component
+   */
+  private BuildContext mBuildContext = new DefaultBuildContext();
+
+  /** The number of outputs written by this execution. */
+  private final AtomicInteger mWrittenOutputs = new AtomicInteger();
+
+  /**
+   * The outputs written in the background by this execution, which the build context is told
+   * about from the thread running the build once they are all written.
+   */
+  private final Set<File> mWrittenFiles =
+      Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+  /** The number of outputs left untouched by this execution because they were unchanged. */
+  private final AtomicInteger mUnchangedOutputs = new AtomicInteger();
+
+  /** The size of the outputs compiled by this execution, whether written or unchanged. */
+  private final AtomicLong mOutputBytes = new AtomicLong();
+
+  /** Reports the progress of the current compile. */
+  private ProgressReporter mProgress;
+
+  /** Measures the phases of the current compile. */
+  private CompileMetrics mMetrics = new CompileMetrics(0);
+
+  /** A partition whose sources have been read, waiting to be compiled. */
+  private static final class ReadPartition {
+    /** The partition. */
+    private final CompilePartition mPartition;
+
+    /** The contents of the sources of the partition, keyed by relative path. */
+    private final Map<String, SoySourceCache.Entry> mSources;
+
+    /**
+     * Constructs a ReadPartition.
+     *
+     * @param partition The partition.
+     * @param sources The contents of the sources of the partition, keyed by relative path.
+     */
+    ReadPartition(CompilePartition partition, Map<String, SoySourceCache.Entry> sources) {
+      mPartition = partition;
+      mSources = sources;
+    }
+
+    /**
+     * Gets the partition.
+     *
+     * @return The partition.
+     */
+    public CompilePartition getPartition() {
+      return mPartition;
+    }
+
+    /**
+     * Gets the contents of the sources of the partition.
+     *
+     * @return The sources, keyed by relative path.
+     */
+    public Map<String, SoySourceCache.Entry> getSources() {
+      return mSources;
+    }
+  }
+
+  /** What a build run by an IDE remembers in the build context for the next one. */
+  private static final class ContextState {
+    /** The input soy files found by the build. */
+    private final SortedMap<String, InputScanner.InputFile> mInputs;
+
+    /** The state of the build. */
+    private final BuildState mState;
+
+    /**
+     * Constructs a ContextState.
+     *
+     * @param inputs The input soy files found by the build.
+     * @param state The state of the build.
+     */
+    ContextState(SortedMap<String, InputScanner.InputFile> inputs, BuildState state) {
+      mInputs = inputs;
+      mState = state;
+    }
+
+    /**
+     * Gets the input soy files found by the build.
+     *
+     * @return The input files, keyed by path relative to the directory of their file set.
+     */
+    public SortedMap<String, InputScanner.InputFile> getInputs() {
+      return mInputs;
+    }
+
+    /**
+     * Gets the state of the build.
+     *
+     * @return The build state.
+     */
+    public BuildState getState() {
+      return mState;
+    }
+  }
+
   /**
    * Sets the input soy files to compile.
    *
@@ -87,6 +438,15 @@ public class CompileMojo extends AbstractMojo {
     mInputFiles = inputFiles;
   }
 
+  /**
+   * Sets further soy files to compile, from other directories.
+   *
+   * @param inputFileSets Input file sets.
+   */
+  public void setInputFileSets(List<FileSet> inputFileSets) {
+    mInputFileSets = inputFileSets;
+  }
+
   /**
    * Sets the target directory for generated javascript files.
    *
@@ -125,54 +485,1502 @@ public class CompileMojo extends AbstractMojo {
   }
 
   /**
-   * Gets the set of input soy templates.
+   * Sets whether to only recompile changed soy files and their callers.
    *
-   * @return The soy files to compile into javascript files.
+   * @param incremental Whether to compile incrementally.
    */
-  private SoyFileSet getInputFileSet() {
-    SoyFileSet.Builder soyFileSetBuilder = new SoyFileSet.Builder()
-        .setCompileTimeGlobals(mCompileTimeGlobals);
+  public void setIncremental(boolean incremental) {
+    mIncremental = incremental;
+  }
 
-    FileSetManager fileSetManager = new FileSetManager(getLog());
-    for (String filename : fileSetManager.getIncludedFiles(mInputFiles)) {
-      File soyFile = new File(mInputFiles.getDirectory(), filename);
-      getLog().info("Including soy file: " + soyFile);
-      soyFileSetBuilder.add(soyFile);
-    }
-    return soyFileSetBuilder.build();
+  /**
+   * Sets the directory where the plugin keeps state between builds.
+   *
+   * @param workDirectory A directory.
+   */
+  public void setWorkDirectory(File workDirectory) {
+    mWorkDirectory = workDirectory;
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public void execute() throws MojoExecutionException {
-    getLog().info("Compiling soy templates...");
+  /**
+   * Sets whether to keep a cache of compiled outputs.
+   *
+   * @param cache Whether to use the output cache.
+   */
+  public void setCache(boolean cache) {
+    mCache = cache;
+  }
 
-    SoyFileSet soyFileSet = getInputFileSet();
-    SoyJsSrcOptions jsSrcOptions = new SoyJsSrcOptions();
-    jsSrcOptions.setShouldProvideRequireSoyNamespaces(mShouldProvideRequireSoyNamespaces);
-    jsSrcOptions.setShouldGenerateJsdoc(mShouldGenerateJsdoc);
-    List<String> compiledSrcs = soyFileSet.compileToJsSrc(jsSrcOptions, null);
+  /**
+   * Sets the number of compiles to keep in the output cache.
+   *
+   * @param cacheSize A number of cache entries.
+   */
+  public void setCacheSize(int cacheSize) {
+    mCacheSize = cacheSize;
+  }
 
-    FileSetManager fileSetManager = new FileSetManager(getLog());
-    String[] inputFilenames = fileSetManager.getIncludedFiles(mInputFiles);
-    assert inputFilenames.length == compiledSrcs.size();
-    if (mOutputDirectory.mkdirs()) {
-      getLog().info("Created output directory: " + mOutputDirectory);
-    }
-    for (int i = 0; i < inputFilenames.length; i++) {
-      File outputFile = new File(mOutputDirectory, inputFilenames[i] + ".js");
-      getLog().info("Writing compiled soy: " + outputFile);
-      Writer writer = null;
-      try {
-        if (outputFile.createNewFile()) {
-          getLog().info("Created new file: " + outputFile);
-        }
-        writer = new FileWriter(outputFile);
-        writer.write(compiledSrcs.get(i));
-        writer.flush();
-      } catch (IOException e) {
-        IOUtils.closeQuietly(writer);
+  /**
+   * Sets the number of threads to compile with.
+   *
+   * @param threads A number of threads.
+   */
+  public void setThreads(int threads) {
+    mThreads = threads;
+  }
+
+  /**
+   * Sets the number of threads that read soy files and write outputs.
+   *
+   * @param ioThreads A number of threads.
+   */
+  public void setIoThreads(int ioThreads) {
+    mIoThreads = ioThreads;
+  }
+
+  /**
+   * Sets the estimated heap that concurrent compiles may use between them.
+   *
+   * @param memoryBudget A number of megabytes.
+   */
+  public void setMemoryBudget(long memoryBudget) {
+    mMemoryBudget = memoryBudget;
+  }
+
+  /**
+   * Sets the shortest time between progress reports.
+   *
+   * @param progressInterval A number of seconds, or 0 to disable progress reports.
+   */
+  public void setProgressInterval(int progressInterval) {
+    mProgressInterval = progressInterval;
+  }
+
+  /**
+   * Sets the file to write the metrics report to.
+   *
+   * @param metricsFile A file, or null to not write the report.
+   */
+  public void setMetricsFile(File metricsFile) {
+    mMetricsFile = metricsFile;
+  }
+
+  /**
+   * Sets the number of slowest files and compiles to list in the metrics report.
+   *
+   * @param metricsSlowest A number of files and compiles.
+   */
+  public void setMetricsSlowest(int metricsSlowest) {
+    mMetricsSlowest = metricsSlowest;
+  }
+
+  /**
+   * Sets the file to keep the metrics of recent builds in.
+   *
+   * @param metricsHistory A file, or null to not keep a history.
+   */
+  public void setMetricsHistory(File metricsHistory) {
+    mMetricsHistory = metricsHistory;
+  }
+
+  /**
+   * Sets the number of recent builds to keep in the metrics history.
+   *
+   * @param metricsHistorySize A number of builds.
+   */
+  public void setMetricsHistorySize(int metricsHistorySize) {
+    mMetricsHistorySize = metricsHistorySize;
+  }
+
+  /**
+   * Sets how much worse than similar recent builds a build may be before it is reported.
+   *
+   * @param regressionThreshold A percentage, or 0 to disable.
+   */
+  public void setRegressionThreshold(int regressionThreshold) {
+    mRegressionThreshold = regressionThreshold;
+  }
+
+  /**
+   * Sets whether to fail the build on a regression.
+   *
+   * @param failOnRegression Whether to fail the build.
+   */
+  public void setFailOnRegression(boolean failOnRegression) {
+    mFailOnRegression = failOnRegression;
+  }
+
+  /**
+   * Sets whether to hold the generated javascript outside the Java heap.
+   *
+   * @param offHeapOutputs Whether to use direct buffers.
+   */
+  public void setOffHeapOutputs(boolean offHeapOutputs) {
+    mOffHeapOutputs = offHeapOutputs;
+  }
+
+  /**
+   * Sets the maximum size of the soy sources kept in memory between executions.
+   *
+   * @param sourceCacheSize A number of megabytes of characters.
+   */
+  public void setSourceCacheSize(long sourceCacheSize) {
+    mSourceCacheSize = sourceCacheSize;
+  }
+
+  /**
+   * Sets the Guice modules that provide custom soy functions and print directives.
+   *
+   * @param pluginModules Module class names.
+   */
+  public void setPluginModules(List<String> pluginModules) {
+    mPluginModules = pluginModules;
+  }
+
+  /**
+   * Sets whether to compile in a long-lived background process.
+   *
+   * @param daemon Whether to use the compile daemon.
+   */
+  public void setDaemon(boolean daemon) {
+    mDaemon = daemon;
+  }
+
+  /**
+   * Sets how long a compile daemon stays alive without receiving any requests.
+   *
+   * @param daemonIdleTimeout A number of seconds.
+   */
+  public void setDaemonIdleTimeout(long daemonIdleTimeout) {
+    mDaemonIdleTimeout = daemonIdleTimeout;
+  }
+
+  /**
+   * Sets the git revision to only compile the soy files changed since.
+   *
+   * @param affectedSince A git revision, or null to compile every soy file.
+   */
+  public void setAffectedSince(String affectedSince) {
+    mAffectedSince = affectedSince;
+  }
+
+  /**
+   * Sets when to force outputs to disk.
+   *
+   * @param fsync One of <code>none</code>, <code>batch</code> or <code>file</code>.
+   */
+  public void setFsync(String fsync) {
+    mFsync = fsync;
+  }
+
+  /**
+   * Sets the build context.
+   *
+   * @param buildContext A build context.
+   */
+  public void setBuildContext(BuildContext buildContext) {
+    mBuildContext = buildContext;
+  }
+
+  /**
+   * Gets the set of input soy templates. Package-private for the benchmarks.
+   *
+   * @param soyFiles The soy files to include.
+   * @param contents The contents of each soy file, in the same order.
+   * @return The soy files to compile into javascript files.
+   * @throws MojoExecutionException If a plugin module cannot be loaded.
+   */
+  SoyFileSet getInputFileSet(List<File> soyFiles, List<String> contents)
+      throws MojoExecutionException {
+    boolean debug = getLog().isDebugEnabled();
+    List<String> paths = new ArrayList<String>(soyFiles.size());
+    for (File soyFile : soyFiles) {
+      if (debug) {
+        getLog().debug("Including soy file: " + soyFile);
       }
+      // Use the same path the soy compiler would, since it appears in the generated code.
+      paths.add(soyFile.getPath());
+    }
+    try {
+      return getCompiler().getFileSet(paths, contents);
+    } catch (IllegalArgumentException e) {
+      throw new MojoExecutionException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Gets a compiler with the configured options.
+   *
+   * @return The soy compiler.
+   */
+  private SoyCompiler getCompiler() {
+    return new SoyCompiler(mShouldProvideRequireSoyNamespaces, mShouldGenerateJsdoc,
+        mCompileTimeGlobals, mPluginModules);
+  }
+
+  /**
+   * Gets the output file for a soy file.
+   *
+   * @param filename The soy file, relative to the input directory.
+   * @return The javascript file it compiles to.
+   */
+  private File getOutputFile(String filename) {
+    return new File(mOutputDirectory, filename + ".js");
+  }
+
+  /**
+   * Gets a description of the soy compiler in use, so that upgrading it invalidates outputs.
+   *
+   * @return The soy compiler version, or the location it was loaded from.
+   */
+  private static String getSoyCompilerVersion() {
+    String version = SoyFileSet.class.getPackage().getImplementationVersion();
+    if (null != version) {
+      return version;
+    }
+    CodeSource codeSource = SoyFileSet.class.getProtectionDomain().getCodeSource();
+    return null == codeSource ? "unknown" : String.valueOf(codeSource.getLocation());
+  }
+
+  /**
+   * Computes a fingerprint of the options that affect every compiled output.
+   *
+   * @return A fingerprint of the compiler options and version.
+   */
+  private Fingerprint getOptionsFingerprint() {
+    Fingerprint fingerprint = new Fingerprint()
+        .add(getSoyCompilerVersion())
+        .add(String.valueOf(mShouldProvideRequireSoyNamespaces))
+        .add(String.valueOf(mShouldGenerateJsdoc))
+        .add(String.valueOf(mPluginModules));
+    for (Map.Entry<String, String> global
+        : new TreeMap<String, String>(mCompileTimeGlobals).entrySet()) {
+      fingerprint.add(global.getKey()).add(global.getValue());
+    }
+    return fingerprint;
+  }
+
+  /**
+   * Computes the cache key for compiling the input files with the current options.
+   *
+   * @param inputFilenames The input soy files, relative to the input directory.
+   * @return A fingerprint of the compiler options and the contents of every input file.
+   * @throws MojoExecutionException If a soy file cannot be read.
+   */
+  private String getCacheKey(String[] inputFilenames) throws MojoExecutionException {
+    SortedMap<String, String> hashes = new TreeMap<String, String>();
+    for (String filename : inputFilenames) {
+      hashes.put(filename, readSourceFile(filename).getHash());
+    }
+    return OutputCache.getKey(getOptionsFingerprint(), hashes);
+  }
+
+  /**
+   * Gets an input soy file found by the current build.
+   *
+   * @param filename The soy file, relative to its input directory.
+   * @return The soy file.
+   */
+  private File getSourceFile(String filename) {
+    return mInputs.get(filename).getFile();
+  }
+
+  /**
+   * Reads a soy file, or gets it from the source cache if it has not changed since it was
+   * last read.
+   *
+   * @param filename The soy file, relative to the input directory.
+   * @return The contents and dependency information of the file.
+   * @throws MojoExecutionException If the soy file cannot be read.
+   */
+  private SoySourceCache.Entry readSourceFile(String filename) throws MojoExecutionException {
+    File soyFile = getSourceFile(filename);
+    Object event = FlightEvent.READ.begin();
+    boolean cacheHit = null != event && SoySourceCache.getShared().contains(soyFile);
+    CompileMetrics.Sample sample = mMetrics.start();
+    SoySourceCache.Entry entry = null;
+    try {
+      entry = readSourceFile(soyFile);
+      return entry;
+    } finally {
+      mMetrics.stopFile(CompileMetrics.Phase.READ, sample, filename);
+      FlightEvent.READ.commit(event, soyFile.getPath(), null == entry ? 0L : entry.getLength(),
+          cacheHit);
+    }
+  }
+
+  /**
+   * Reads a soy file, or gets it from the source cache if it has not changed since it was
+   * last read.
+   *
+   * @param soyFile The soy file.
+   * @return The contents and dependency information of the file.
+   * @throws MojoExecutionException If the soy file cannot be read.
+   */
+  private static SoySourceCache.Entry readSourceFile(File soyFile)
+      throws MojoExecutionException {
+    try {
+      return SoySourceCache.getShared().get(soyFile);
+    } catch (IOException e) {
+      throw new MojoExecutionException("Unable to read soy file: " + soyFile, e);
+    }
+  }
+
+  /**
+   * Reads soy files in parallel, or gets them from the source cache if they have not changed
+   * since they were last read.
+   *
+   * @param filenames The soy files, relative to their input directory.
+   * @return The contents and dependency information of the files, keyed by relative path.
+   * @throws MojoExecutionException If a soy file cannot be read.
+   */
+  private Map<String, SoySourceCache.Entry> readSourceFiles(Collection<String> filenames)
+      throws MojoExecutionException {
+    Map<String, SoySourceCache.Entry> sources = new HashMap<String, SoySourceCache.Entry>();
+    if (filenames.size() < 2 || mThreads < 2) {
+      for (String filename : filenames) {
+        sources.put(filename, readSourceFile(filename));
+      }
+      return sources;
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(mThreads);
+    try {
+      return readSourceFiles(filenames, pool);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Reads soy files in parallel on a given pool, or gets them from the source cache if they
+   * have not changed since they were last read.
+   *
+   * @param filenames The soy files, relative to their input directory.
+   * @param pool The pool to read the files on.
+   * @return The contents and dependency information of the files, keyed by relative path.
+   * @throws MojoExecutionException If a soy file cannot be read.
+   */
+  private Map<String, SoySourceCache.Entry> readSourceFiles(Collection<String> filenames,
+      ExecutorService pool) throws MojoExecutionException {
+    Map<String, SoySourceCache.Entry> sources = new HashMap<String, SoySourceCache.Entry>();
+    List<Callable<SoySourceCache.Entry>> reads =
+        new ArrayList<Callable<SoySourceCache.Entry>>(filenames.size());
+    for (final String filename : filenames) {
+      reads.add(new Callable<SoySourceCache.Entry>() {
+        @Override
+        public SoySourceCache.Entry call() throws MojoExecutionException {
+          return readSourceFile(filename);
+        }
+      });
+    }
+    try {
+      Iterator<String> filename = filenames.iterator();
+      for (Future<SoySourceCache.Entry> future : pool.invokeAll(reads)) {
+        sources.put(filename.next(), future.get());
+      }
+      return sources;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while reading soy files.", e);
+    } catch (ExecutionException e) {
+      throw unwrap(e, "Unable to read soy files.");
+    }
+  }
+
+  /**
+   * Determines whether every output is up to date with respect to a previous build, from the
+   * size and modification time of the input files and outputs alone.
+   *
+   * @param previous The state recorded by the last build.
+   * @param optionsFingerprint The fingerprint of the current compiler options.
+   * @return Whether the previous build saw exactly the current input files and outputs.
+   */
+  private boolean isUpToDate(BuildState previous, String optionsFingerprint) {
+    if (!previous.getOptionsFingerprint().equals(optionsFingerprint)
+        || previous.getPaths().size() != mInputs.size()) {
+      return false;
+    }
+    for (Map.Entry<String, InputScanner.InputFile> input : mInputs.entrySet()) {
+      BuildState.Entry entry = previous.get(input.getKey());
+      if (null == entry || !entry.isUpToDate(input.getValue())
+          || !entry.isOutputUpToDate(getOutputFile(input.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Determines which input files are affected by the changes in the git working trees of the
+   * input directories since they diverged from the configured revision.
+   *
+   * <p>A file is affected if it was added or modified, or if it calls a template that was
+   * defined in a changed or deleted file, either before or after the change.</p>
+   *
+   * @param graph The call graph of all input files.
+   * @return The affected input files, relative to their input directory.
+   * @throws MojoExecutionException If git fails.
+   */
+  private SortedSet<String> getAffectedFiles(DependencyGraph graph)
+      throws MojoExecutionException {
+    SortedSet<String> affected = new TreeSet<String>();
+    Set<String> affectedTemplates = new HashSet<String>();
+    Set<String> affectedDelTemplates = new HashSet<String>();
+    Map<File, Set<File>> changedFilesByTopLevel = new HashMap<File, Set<File>>();
+    for (FileSet fileSet : getAllInputFileSets()) {
+      File directory = new File(fileSet.getDirectory());
+      if (!directory.isDirectory()) {
+        continue;
+      }
+      try {
+        GitChanges changes = GitChanges.open(directory, mAffectedSince);
+        Set<File> changedFiles = changedFilesByTopLevel.get(changes.getTopLevel());
+        if (null == changedFiles) {
+          changedFiles = changes.getChangedFiles();
+          changedFilesByTopLevel.put(changes.getTopLevel(), changedFiles);
+        }
+        // Git reports paths below the canonical top level directory.
+        String prefix = directory.getCanonicalPath() + File.separator;
+        for (File changedFile : changedFiles) {
+          if (!changedFile.getPath().startsWith(prefix)) {
+            continue;
+          }
+          String filename = changedFile.getPath().substring(prefix.length());
+          InputScanner.InputFile input = mInputs.get(filename);
+          boolean isInput = null != input
+              && input.getFile().getCanonicalFile().equals(changedFile);
+          if (!isInput && !filename.endsWith(".soy")) {
+            continue;
+          }
+          if (isInput) {
+            affected.add(filename);
+            SoyFileInfo info = readSourceFile(filename).getInfo();
+            affectedTemplates.addAll(info.getTemplates());
+            affectedDelTemplates.addAll(info.getDelTemplates());
+          }
+          String original = changes.getOriginalContent(changedFile);
+          if (null != original) {
+            SoyFileInfo info = SoyFileInfo.scan(original);
+            affectedTemplates.addAll(info.getTemplates());
+            affectedDelTemplates.addAll(info.getDelTemplates());
+          }
+        }
+      } catch (IOException e) {
+        throw new MojoExecutionException("Unable to find the soy files changed since "
+            + mAffectedSince + " in " + directory, e);
+      }
+    }
+    getLog().info(affected.size() + " soy files changed since " + mAffectedSince + ".");
+    affected.addAll(graph.getCallers(affectedTemplates, affectedDelTemplates));
+    return affected;
+  }
+
+  /**
+   * Records the current state of the input files and determines which of them are stale.
+   *
+   * <p>A file is stale if it is new, if it changed since it was last compiled, if its output is
+   * missing or was modified, or if it calls a template that was defined in a changed or deleted
+   * file. Only files whose size or modification time changed are read, in parallel, and a file
+   * whose contents turn out to be the same as before is not stale. If there is no usable
+   * previous state, or the compiler options changed, every file is stale.</p>
+   *
+   * @param inputFilenames The input soy files, relative to the input directory.
+   * @param previous The state recorded by the last build, or null.
+   * @param current The state to record the input files in.
+   * @return The stale input files.
+   * @throws MojoExecutionException If a soy file cannot be read.
+   */
+  private SortedSet<String> getStaleFiles(String[] inputFilenames, BuildState previous,
+      BuildState current) throws MojoExecutionException {
+    boolean fullRebuild = null == previous
+        || !previous.getOptionsFingerprint().equals(current.getOptionsFingerprint());
+    List<String> touched = new ArrayList<String>();
+    for (String filename : inputFilenames) {
+      BuildState.Entry entry = fullRebuild ? null : previous.get(filename);
+      if (null != entry && entry.isUpToDate(mInputs.get(filename))
+          && entry.isOutputUpToDate(getOutputFile(filename))) {
+        current.put(filename, entry);
+      } else {
+        touched.add(filename);
+      }
+    }
+    return getStaleFiles(touched, fullRebuild ? null : previous, current);
+  }
+
+  /**
+   * Records the current state of input files that may have changed, and determines which input
+   * files are stale because of them. Every other input file must already be recorded.
+   *
+   * @param touched The input files that may have changed, relative to their input directory.
+   * @param previous The state recorded by the last build, or null if every file is stale.
+   * @param current The state to record the input files in.
+   * @return The stale input files.
+   * @throws MojoExecutionException If a soy file cannot be read.
+   */
+  private SortedSet<String> getStaleFiles(Collection<String> touched, BuildState previous,
+      BuildState current) throws MojoExecutionException {
+    boolean fullRebuild = null == previous;
+    Map<String, SoySourceCache.Entry> sources = readSourceFiles(touched);
+    SortedSet<String> changed = new TreeSet<String>();
+    Set<String> affectedTemplates = new HashSet<String>();
+    Set<String> affectedDelTemplates = new HashSet<String>();
+    for (String filename : touched) {
+      BuildState.Entry entry = fullRebuild ? null : previous.get(filename);
+      SoySourceCache.Entry source = sources.get(filename);
+      SoyFileInfo info = source.getInfo();
+      BuildState.Entry updated = new BuildState.Entry(
+          source.getLength(), source.getLastModified(), source.getHash(), info);
+      if (null != entry) {
+        // The output is unchanged until it is written again.
+        updated = updated.withOutput(entry);
+      }
+      current.put(filename, updated);
+      if (null != entry && entry.getHash().equals(source.getHash())) {
+        // The templates are unchanged, so callers are unaffected, but a missing or modified
+        // output is still written again.
+        if (!entry.isOutputUpToDate(getOutputFile(filename))) {
+          changed.add(filename);
+        }
+        continue;
+      }
+      changed.add(filename);
+      affectedTemplates.addAll(info.getTemplates());
+      affectedDelTemplates.addAll(info.getDelTemplates());
+      if (null != entry) {
+        affectedTemplates.addAll(entry.getInfo().getTemplates());
+        affectedDelTemplates.addAll(entry.getInfo().getDelTemplates());
+      }
+    }
+    if (fullRebuild) {
+      return changed;
+    }
+
+    for (String filename : previous.getPaths()) {
+      if (null == current.get(filename)) {
+        affectedTemplates.addAll(previous.get(filename).getInfo().getTemplates());
+        affectedDelTemplates.addAll(previous.get(filename).getInfo().getDelTemplates());
+      }
+    }
+    SortedSet<String> stale = new TreeSet<String>(changed);
+    stale.addAll(new DependencyGraph(current.getFileInfos())
+        .getCallers(affectedTemplates, affectedDelTemplates));
+    return stale;
+  }
+
+  /**
+   * Gets the key this execution remembers its state under in the build context.
+   *
+   * @return The build context key.
+   */
+  private String getContextKey() {
+    return CompileMojo.class.getName() + ":" + mOutputDirectory;
+  }
+
+  /**
+   * Gets what the last build run by the IDE remembered, if it can be built on.
+   *
+   * @param optionsFingerprint The fingerprint of the current compiler options.
+   * @return The remembered state, or null if there is none or the compiler options changed.
+   */
+  private ContextState getContextState(String optionsFingerprint) {
+    Object value = mBuildContext.getValue(getContextKey());
+    // The value may have been left by another version of the plugin, from another class loader.
+    if (!(value instanceof ContextState)) {
+      return null;
+    }
+    ContextState context = (ContextState) value;
+    if (!context.getState().getOptionsFingerprint().equals(optionsFingerprint)) {
+      return null;
+    }
+    return context;
+  }
+
+  /**
+   * Runs a build context scanner with the patterns of a file set.
+   *
+   * @param scanner The scanner.
+   * @param fileSet The file set.
+   * @return The selected files, relative to the directory of the file set.
+   */
+  private static String[] scan(Scanner scanner, FileSet fileSet) {
+    // Like a maven file set, no include patterns selects every file.
+    if (!fileSet.getIncludes().isEmpty()) {
+      scanner.setIncludes(fileSet.getIncludesArray());
+    }
+    if (!fileSet.getExcludes().isEmpty()) {
+      scanner.setExcludes(fileSet.getExcludesArray());
+    }
+    if (fileSet.isUseDefaultExcludes()) {
+      scanner.addDefaultExcludes();
+    }
+    scanner.scan();
+    return scanner.getIncludedFiles();
+  }
+
+  /**
+   * Gets the input soy files the build context reports as changed or deleted since the last
+   * build run by the IDE.
+   *
+   * @param fileSets The input file sets.
+   * @return The changed input files, keyed by path relative to the directory of their file set,
+   *     with null for deleted files.
+   */
+  private SortedMap<String, File> getDelta(List<FileSet> fileSets) {
+    CompileMetrics.Sample sample = mMetrics.start();
+    SortedMap<String, File> delta = new TreeMap<String, File>();
+    for (FileSet fileSet : fileSets) {
+      File directory = new File(fileSet.getDirectory());
+      for (String filename : scan(mBuildContext.newDeleteScanner(directory), fileSet)) {
+        if (!delta.containsKey(filename)) {
+          delta.put(filename, null);
+        }
+      }
+      // A file moved to another input directory is deleted from one and added to the other.
+      for (String filename : scan(mBuildContext.newScanner(directory), fileSet)) {
+        delta.put(filename, new File(directory, filename));
+      }
+    }
+    mMetrics.stop(CompileMetrics.Phase.SCAN, sample);
+    return delta;
+  }
+
+  /**
+   * Records the current state of the input files from the changes reported by the build
+   * context, and determines which of them are stale, without looking at any other file.
+   *
+   * @param delta The changed input files, keyed by path relative to the directory of their
+   *     file set, with null for deleted files. Deleted paths that were not input files are
+   *     removed from it.
+   * @param context The input files and state of the build the changes are relative to.
+   * @param current The state to record the input files in.
+   * @return The stale input files, or null if the input files must be scanned instead.
+   * @throws MojoExecutionException If a soy file cannot be read.
+   */
+  private SortedSet<String> getDeltaStaleFiles(SortedMap<String, File> delta,
+      ContextState context, BuildState current) throws MojoExecutionException {
+    mInputs = new TreeMap<String, InputScanner.InputFile>(context.getInputs());
+    List<String> touched = new ArrayList<String>();
+    Iterator<Map.Entry<String, File>> changes = delta.entrySet().iterator();
+    while (changes.hasNext()) {
+      Map.Entry<String, File> change = changes.next();
+      InputScanner.InputFile existing = mInputs.remove(change.getKey());
+      File file = change.getValue();
+      if (null == file) {
+        // A deleted directory is reported alone, without the input files it held.
+        String prefix = change.getKey() + File.separator;
+        if (null == existing
+            && !mInputs.subMap(prefix, prefix + Character.MAX_VALUE).isEmpty()) {
+          return null;
+        }
+        if (null == existing) {
+          changes.remove();
+        }
+        continue;
+      }
+      if (null != existing && !existing.getFile().equals(file) && existing.getFile().isFile()) {
+        // Let a full scan decide whether both files are inputs, and report it if they are.
+        return null;
+      }
+      mInputs.put(change.getKey(),
+          new InputScanner.InputFile(file, file.length(), file.lastModified()));
+      touched.add(change.getKey());
+    }
+    for (String filename : mInputs.keySet()) {
+      BuildState.Entry entry = context.getState().get(filename);
+      if (delta.containsKey(filename)) {
+        continue;
+      } else if (null == entry) {
+        touched.add(filename);
+      } else {
+        current.put(filename, entry);
+      }
+    }
+    return getStaleFiles(touched, context.getState(), current);
+  }
+
+  /**
+   * Gets the options for generating javascript. Package-private for the benchmarks.
+   *
+   * @return The javascript generation options.
+   */
+  SoyJsSrcOptions getJsSrcOptions() {
+    return getCompiler().getJsSrcOptions();
+  }
+
+  /**
+   * Determines whether a file already holds exactly the given bytes.
+   *
+   * @param file The file.
+   * @param content The expected contents, between the position and limit of the buffer.
+   * @return Whether the file exists with the same contents.
+   * @throws IOException If the file exists but cannot be read.
+   */
+  private static boolean hasContent(File file, ByteBuffer content) throws IOException {
+    return file.isFile() && file.length() == content.remaining()
+        && ByteBuffer.wrap(FileUtils.readFileToByteArray(file)).equals(content);
+  }
+
+  /**
+   * Writes compiled javascript to the output directory in the background.
+   *
+   * <p>Each output is written by the output writer on a thread of its own, and this only waits
+   * when too many writes are already pending. The build waits for every write to finish
+   * before it completes.</p>
+   *
+   * @param compiledSrcs The compiled javascript, encoded by the output writer and keyed by soy
+   *     file relative to the input directory.
+   * @throws MojoExecutionException If an earlier output could not be written.
+   */
+  private void writeOutputs(Map<String, ByteBuffer> compiledSrcs)
+      throws MojoExecutionException {
+    try {
+      for (final Map.Entry<String, ByteBuffer> compiledSrc : compiledSrcs.entrySet()) {
+        mOutputWriter.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws MojoExecutionException {
+            writeOutput(compiledSrc.getKey(), compiledSrc.getValue());
+            return null;
+          }
+        });
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while writing compiled soy.", e);
+    } catch (ExecutionException e) {
+      throw unwrap(e, "Unable to write compiled soy.");
+    }
+  }
+
+  /**
+   * Writes the compiled javascript of a soy file to the output directory.
+   *
+   * <p>Outputs whose contents have not changed are left untouched, so that their modification
+   * times do not trigger downstream rebuilds. If the build state is tracked, the hash of each
+   * output is recorded, and an output that matches its recorded hash and has not been modified
+   * since is not even read back.</p>
+   *
+   * @param filename The soy file, relative to the input directory.
+   * @param content The compiled javascript, encoded by the output writer, which is released
+   *     once it has been written.
+   * @throws MojoExecutionException If the output cannot be written.
+   */
+  private void writeOutput(String filename, ByteBuffer content) throws MojoExecutionException {
+    File outputFile = getOutputFile(filename);
+    Object event = FlightEvent.WRITE.begin();
+    CompileMetrics.Sample sample = mMetrics.start();
+    boolean unchanged = false;
+    // Read before the buffer goes back to the pool, where another thread may reuse it.
+    long bytes = content.remaining();
+    mOutputBytes.addAndGet(bytes);
+    try {
+      BuildState.Entry recorded = null == mState ? null : mState.get(filename);
+      String outputHash = null == recorded ? null : new Fingerprint().add(content).toHex();
+      if (null != recorded && outputHash.equals(recorded.getOutputHash())
+          && recorded.isOutputUpToDate(outputFile) || hasContent(outputFile, content)) {
+        mUnchangedOutputs.incrementAndGet();
+        mProgress.done(0);
+        unchanged = true;
+        if (null != recorded) {
+          mState.put(filename, recorded.withOutput(outputHash, outputFile));
+        }
+        return;
+      }
+      if (getLog().isDebugEnabled()) {
+        getLog().debug((outputFile.exists() ? "Writing compiled soy: " : "Created new file: ")
+            + outputFile);
+      }
+      mOutputWriter.write(outputFile, content);
+      mWrittenOutputs.incrementAndGet();
+      mProgress.done(bytes);
+      mWrittenFiles.add(outputFile);
+      if (null != recorded) {
+        mState.put(filename, recorded.withOutput(outputHash, outputFile));
+      }
+    } catch (IOException e) {
+      throw new MojoExecutionException("Unable to write compiled soy: " + outputFile, e);
+    } finally {
+      mMetrics.stopFile(CompileMetrics.Phase.WRITE, sample, filename);
+      FlightEvent.WRITE.commit(event, outputFile.getPath(), bytes, unchanged);
+      mOutputWriter.release(content);
+    }
+  }
+
+  /**
+   * Deletes the outputs recorded by the last build whose soy files are no longer inputs, along
+   * with any directories that are left empty, and records the outputs of the current inputs.
+   *
+   * <p>The outputs are recorded before they are written, so a build that fails part way still
+   * knows which outputs it may have written. If the last build did not finish writing, the
+   * temporary files it may have left next to those outputs are deleted too.</p>
+   */
+  private void deleteOrphanedOutputs() {
+    OutputManifest manifest = new OutputManifest(getManifestFile());
+    SortedSet<String> outputs = new TreeSet<String>();
+    for (String filename : mInputs.keySet()) {
+      outputs.add(filename + ".js");
+    }
+    SortedSet<String> recorded = manifest.load();
+    File marker = getWritingMarkerFile();
+    if (marker.exists()) {
+      for (String output : recorded) {
+        FileUtils.deleteQuietly(OutputWriter.getTempFile(new File(mOutputDirectory, output)));
+      }
+    }
+    int deleted = 0;
+    for (String output : recorded) {
+      File orphan = new File(mOutputDirectory, output);
+      if (outputs.contains(output) || !orphan.isFile()) {
+        continue;
+      }
+      getLog().debug("Deleting orphaned output: " + orphan);
+      if (!orphan.delete()) {
+        getLog().warn("Unable to delete orphaned output: " + orphan);
+        continue;
+      }
+      deleted++;
+      mBuildContext.refresh(orphan);
+      File parent = orphan.getParentFile();
+      while (null != parent && !parent.equals(mOutputDirectory) && parent.delete()) {
+        parent = parent.getParentFile();
+      }
+    }
+    if (deleted > 0) {
+      getLog().info("Deleted " + deleted + " orphaned outputs.");
+    }
+
+    try {
+      FileUtils.forceMkdir(mWorkDirectory);
+      manifest.save(outputs);
+      FileUtils.touch(marker);
+    } catch (IOException e) {
+      getLog().warn("Unable to record the outputs of this build: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Compiles soy files that have already been read in a single soy file set in this JVM.
+   *
+   * @param sources The soy files to compile.
+   * @param contents The contents of each soy file, in the same order.
+   * @return The compiled javascript of each source, in the order of the sources.
+   * @throws MojoExecutionException If a plugin module cannot be loaded.
+   */
+  private List<String> compileSources(List<File> sources, List<String> contents)
+      throws MojoExecutionException {
+    return getInputFileSet(sources, contents).compileToJsSrc(getJsSrcOptions(), null);
+  }
+
+  /**
+   * Compiles soy files in a single soy file set, in the compile daemon if one is in use.
+   *
+   * <p>The daemon is sent the contents already read by this execution, so it compiles the same
+   * bytes that were hashed into the build state and the output cache key. If the soy files do
+   * not compile, they are compiled again in this JVM so that the errors are reported as usual.
+   * If the daemon cannot be reached or fails, it is not used again for the rest of this
+   * execution, and the files are compiled in this JVM instead.</p>
+   *
+   * @param filenames The soy files to compile, relative to the directories of their file sets.
+   * @param sources The soy files to compile.
+   * @param contents The contents of each soy file, in the same order.
+   * @return The compiled javascript of each source, in the order of the sources.
+   * @throws MojoExecutionException If a plugin module cannot be loaded.
+   */
+  private List<String> compileSourcesOrDelegate(List<String> filenames, List<File> sources,
+      List<String> contents) throws MojoExecutionException {
+    CompileDaemonClient daemonClient = mDaemonClient;
+    if (null != daemonClient) {
+      try {
+        List<String> srcs = daemonClient.compile(new CompileRequest(
+            mShouldProvideRequireSoyNamespaces, mShouldGenerateJsdoc, mCompileTimeGlobals,
+            mPluginModules, filenames, contents));
+        if (null != srcs) {
+          return srcs;
+        }
+      } catch (IOException e) {
+        mDaemonClient = null;
+        getLog().warn("Compiling in the maven process, the soy daemon failed: " + e.getMessage());
+      }
+    }
+    return compileSources(sources, contents);
+  }
+
+  /**
+   * Numbers the functions generated for the deltemplates of a soy file from 0, in the order
+   * they appear.
+   *
+   * <p>The soy compiler numbers them by their position in the whole soy file set, so the
+   * javascript of a file would otherwise depend on which files were compiled with it, and
+   * change with the number of threads, or between full and incremental builds. The names only
+   * need to be unique within a file, since each file registers its functions as it defines
+   * them.</p>
+   *
+   * @param src The javascript generated for a soy file.
+   * @return The javascript, with its deltemplates numbered independently of other files.
+   */
+  private static String renumberDelTemplates(String src) {
+    Matcher matcher = DEL_TEMPLATE_ID.matcher(src);
+    if (!matcher.find()) {
+      return src;
+    }
+    Map<String, String> numbers = new HashMap<String, String>();
+    StringBuffer renumbered = new StringBuffer(src.length());
+    do {
+      String number = numbers.get(matcher.group(1));
+      if (null == number) {
+        number = Integer.toString(numbers.size());
+        numbers.put(matcher.group(1), number);
+      }
+      matcher.appendReplacement(renumbered, ".__deltemplate_s" + number + "_");
+    } while (matcher.find());
+    return matcher.appendTail(renumbered).toString();
+  }
+
+  /**
+   * Compiles a partition of the soy files in a single soy file set.
+   *
+   * @param partition The partition to compile.
+   * @param sources The contents of the sources of the partition, keyed by relative path.
+   * @return The compiled javascript of the targets of the partition, encoded by the output
+   *     writer and keyed by relative path.
+   * @throws MojoExecutionException If a plugin module cannot be loaded.
+   */
+  private SortedMap<String, ByteBuffer> compilePartition(CompilePartition partition,
+      Map<String, SoySourceCache.Entry> sources) throws MojoExecutionException {
+    List<String> filenames = new ArrayList<String>(partition.getSources());
+    List<File> soyFiles = new ArrayList<File>(filenames.size());
+    List<String> contents = new ArrayList<String>(filenames.size());
+    for (String filename : filenames) {
+      soyFiles.add(getSourceFile(filename));
+      contents.add(sources.get(filename).getContent());
+    }
+    Object event = FlightEvent.COMPILE.begin();
+    CompileMetrics.Sample sample = mMetrics.start();
+    List<String> srcs = compileSourcesOrDelegate(filenames, soyFiles, contents);
+    assert filenames.size() == srcs.size();
+
+    // Encode the javascript as soon as it is generated, so the strings are already garbage
+    // while the outputs wait to be written.
+    SortedMap<String, ByteBuffer> compiledSrcs = new TreeMap<String, ByteBuffer>();
+    for (int i = 0; i < filenames.size(); i++) {
+      if (partition.getTargets().contains(filenames.get(i))) {
+        compiledSrcs.put(filenames.get(i),
+            mOutputWriter.encode(renumberDelTemplates(srcs.get(i))));
+      }
+    }
+    mMetrics.stopCompile(sample, filenames.size(), partition.getSourceBytes(), filenames.get(0));
+    if (null != event) {
+      long outputBytes = 0;
+      for (ByteBuffer compiledSrc : compiledSrcs.values()) {
+        outputBytes += compiledSrc.remaining();
+      }
+      FlightEvent.COMPILE.commit(event, soyFiles.get(0).getPath(), filenames.size(),
+          partition.getSourceBytes(), outputBytes);
+    }
+    mProgress.compiled(compiledSrcs.size());
+    return compiledSrcs;
+  }
+
+  /**
+   * Gets the estimated heap that concurrent compiles may use between them.
+   *
+   * @return The configured memory budget, or half of the heap that is currently free if none
+   *     was configured, in kilobytes.
+   */
+  private int getMemoryBudgetKilobytes() {
+    long budgetBytes = mMemoryBudget * 1024L * 1024L;
+    if (budgetBytes <= 0) {
+      Runtime runtime = Runtime.getRuntime();
+      budgetBytes = (runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory()) / 2;
+    }
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(1L, budgetBytes / 1024L));
+  }
+
+  /**
+   * Compiles soy files, one partition of independent clusters at a time on each thread, while
+   * the sources of the next partitions are read and the outputs of the previous ones written.
+   *
+   * <p>Each partition is made of whole clusters of the call graph, so it is checked exactly as
+   * it would be in a single compile. Once its deltemplates are renumbered, the javascript
+   * generated for a file does not depend on which other files it was compiled with, so the
+   * output is the same as a single compile.</p>
+   *
+   * <p>Partitions are sized so that one per thread fits in the memory budget, and each
+   * reserves its estimated heap use from the budget before it starts, so a large cluster waits
+   * for smaller ones to finish rather than running the JVM out of memory.</p>
+   *
+   * <p>Reading, compiling and writing are separate stages connected by queues that hold one
+   * partition per compile thread, so the disk stays busy while the processors compile, and a
+   * slow stage holds back the others instead of filling the heap.</p>
+   *
+   * @param filenames The soy files to compile, relative to the input directory.
+   * @param graph The call graph of all input files.
+   * @throws MojoExecutionException If a soy file cannot be read, an output cannot be written,
+   *     or compilation is interrupted.
+   */
+  private void compile(Collection<String> filenames, DependencyGraph graph)
+      throws MojoExecutionException {
+    final int threads = Math.max(1, mThreads);
+    final int budgetKilobytes = getMemoryBudgetKilobytes();
+    CompileMetrics.Sample sample = mMetrics.start();
+    final List<CompilePartition> partitions = CompilePartition.plan(graph, filenames, mInputs,
+        threads, budgetKilobytes * 1024L / HEAP_BYTES_PER_SOURCE_BYTE / threads);
+    mMetrics.stop(CompileMetrics.Phase.PLAN, sample);
+    if (1 == partitions.size()) {
+      CompilePartition partition = partitions.get(0);
+      writeOutputs(compilePartition(partition, readSourceFiles(partition.getSources())));
+      return;
+    }
+
+    int ioThreads = Math.max(1, mIoThreads);
+    getLog().info("Compiling " + filenames.size() + " soy files in " + partitions.size()
+        + " partitions on " + threads + " threads, with " + ioThreads + " I/O threads.");
+    final BlockingQueue<ReadPartition> read = new ArrayBlockingQueue<ReadPartition>(threads);
+    final BlockingQueue<SortedMap<String, ByteBuffer>> compiled =
+        new ArrayBlockingQueue<SortedMap<String, ByteBuffer>>(threads);
+    final AtomicInteger uncompiled = new AtomicInteger(partitions.size());
+    final AtomicInteger unwritten = new AtomicInteger(partitions.size());
+    final Semaphore budget = new Semaphore(budgetKilobytes, true);
+    final ForkJoinPool readPool = new ForkJoinPool(ioThreads);
+    ExecutorService stages = Executors.newCachedThreadPool();
+    try {
+      CompletionService<Void> stageResults = new ExecutorCompletionService<Void>(stages);
+      int running = 0;
+
+      // Read the partitions in the order they will be compiled, largest first.
+      stageResults.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws InterruptedException, MojoExecutionException {
+          for (CompilePartition partition : partitions) {
+            read.put(new ReadPartition(partition,
+                readSourceFiles(partition.getSources(), readPool)));
+          }
+          return null;
+        }
+      });
+      running++;
+
+      for (int i = Math.min(threads, partitions.size()); i > 0; i--) {
+        stageResults.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws InterruptedException, MojoExecutionException {
+            while (uncompiled.getAndDecrement() > 0) {
+              ReadPartition partition = read.take();
+              int estimateKilobytes = (int) Math.min(budgetKilobytes, Math.max(1L,
+                  partition.getPartition().getSourceBytes() * HEAP_BYTES_PER_SOURCE_BYTE / 1024L));
+              budget.acquire(estimateKilobytes);
+              SortedMap<String, ByteBuffer> compiledSrcs;
+              try {
+                compiledSrcs = compilePartition(partition.getPartition(), partition.getSources());
+              } finally {
+                budget.release(estimateKilobytes);
+              }
+              compiled.put(compiledSrcs);
+            }
+            return null;
+          }
+        });
+        running++;
+      }
+
+      for (int i = Math.min(ioThreads, partitions.size()); i > 0; i--) {
+        stageResults.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws InterruptedException, MojoExecutionException {
+            while (unwritten.getAndDecrement() > 0) {
+              writeOutputs(compiled.take());
+            }
+            return null;
+          }
+        });
+        running++;
+      }
+
+      // Stop at the first failure, which interrupts the stages still waiting on a queue.
+      for (; running > 0; running--) {
+        stageResults.take().get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while compiling soy templates.", e);
+    } catch (ExecutionException e) {
+      throw unwrap(e, "Unable to compile soy templates.");
+    } finally {
+      stages.shutdownNow();
+      readPool.shutdownNow();
+    }
+  }
+
+  /**
+   * Rethrows the unchecked cause of a failed task, or wraps a checked one.
+   *
+   * @param e The failure.
+   * @param message The message for a checked cause that is not a MojoExecutionException.
+   * @return The exception to throw.
+   */
+  private static MojoExecutionException unwrap(ExecutionException e, String message) {
+    if (e.getCause() instanceof RuntimeException) {
+      throw (RuntimeException) e.getCause();
+    }
+    if (e.getCause() instanceof Error) {
+      throw (Error) e.getCause();
+    }
+    if (e.getCause() instanceof MojoExecutionException) {
+      return (MojoExecutionException) e.getCause();
+    }
+    return new MojoExecutionException(message, e.getCause());
+  }
+
+  /**
+   * Gets every configured set of input soy files.
+   *
+   * @return The input file sets.
+   */
+  List<FileSet> getAllInputFileSets() {
+    List<FileSet> fileSets = new ArrayList<FileSet>();
+    if (null != mInputFiles) {
+      fileSets.add(mInputFiles);
+    }
+    fileSets.addAll(mInputFileSets);
+    return fileSets;
+  }
+
+  /**
+   * Gets whether outputs are compiled incrementally.
+   *
+   * @return Whether only changed soy files and their callers are recompiled.
+   */
+  boolean isIncremental() {
+    return mIncremental;
+  }
+
+  /**
+   * Gets the file the incremental build state is saved in.
+   *
+   * @return The state file.
+   */
+  File getStateFile() {
+    return new File(mWorkDirectory, "build-state.bin");
+  }
+
+  /**
+   * Gets the file the outputs written to the output directory are recorded in. Each output
+   * directory has its own manifest, so executions that share a work directory do not delete
+   * each other's outputs.
+   *
+   * @return The manifest file.
+   */
+  private File getManifestFile() {
+    String outputDirectory = new Fingerprint().add(mOutputDirectory.getAbsolutePath()).toHex();
+    return new File(mWorkDirectory, "outputs-" + outputDirectory + ".txt");
+  }
+
+  /**
+   * Gets the file that exists while a build is writing to the output directory, so that the
+   * next build knows whether it finished.
+   *
+   * @return The marker file.
+   */
+  private File getWritingMarkerFile() {
+    String outputDirectory = new Fingerprint().add(mOutputDirectory.getAbsolutePath()).toHex();
+    return new File(mWorkDirectory, "writing-" + outputDirectory);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void execute() throws MojoExecutionException {
+    // An IDE keeps the build state in memory, so that its next build only looks at what changed.
+    boolean ideBuild = !(mBuildContext instanceof DefaultBuildContext);
+    build(mIncremental ? BuildState.load(getStateFile()) : null, mIncremental || ideBuild);
+  }
+
+  /**
+   * Compiles the soy templates once.
+   *
+   * <p>If the build state is tracked, only the soy files that are stale with respect to
+   * <code>previous</code> are recompiled, and the state is also saved to the state file when
+   * the <code>incremental</code> parameter is set. The state is also remembered in the build
+   * context, so that an incremental build run by an IDE only looks at the files the IDE
+   * reports as changed, and compares them with the last build it ran instead.</p>
+   *
+   * @param previous The state recorded by the last build, or null to compile every file.
+   * @param trackState Whether to track the build state.
+   * @return The state of this build, or null if the build state was not tracked.
+   * @throws MojoExecutionException If the soy templates cannot be compiled.
+   */
+  BuildState build(BuildState previous, boolean trackState) throws MojoExecutionException {
+    return build(previous, trackState, null);
+  }
+
+  /**
+   * Compiles the soy templates once, after some paths changed.
+   *
+   * <p>If <code>previous</code> is the state of the last build run by this mojo, only the
+   * changed paths are looked at to find which input files changed, as in an incremental build
+   * run by an IDE. Otherwise, or if a directory changed, the input files are scanned.</p>
+   *
+   * @param previous The state recorded by the last build, or null to compile every file.
+   * @param trackState Whether to track the build state.
+   * @param changedPaths The absolute paths that changed since <code>previous</code> was
+   *     recorded, or null if they are unknown.
+   * @return The state of this build, or null if the build state was not tracked.
+   * @throws MojoExecutionException If the soy templates cannot be compiled.
+   */
+  BuildState build(BuildState previous, boolean trackState, Collection<Path> changedPaths)
+      throws MojoExecutionException {
+    getLog().info("Compiling soy templates...");
+    SoySourceCache.getShared().setMaxChars(mSourceCacheSize * 1024L * 1024L);
+    // Load the plugin modules up front, so a misconfiguration fails before anything is read.
+    try {
+      SoyInjector.install(mPluginModules);
+    } catch (IllegalArgumentException e) {
+      throw new MojoExecutionException(e.getMessage(), e);
+    }
+    mWrittenOutputs.set(0);
+    mWrittenFiles.clear();
+    mUnchangedOutputs.set(0);
+    mOutputBytes.set(0);
+    mProgress = null;
+    mMetrics = new CompileMetrics(mMetricsSlowest);
+    try {
+      mOutputWriter = new OutputWriter(OutputWriter.Fsync.parse(mFsync), mIoThreads,
+          mOffHeapOutputs);
+    } catch (IllegalArgumentException e) {
+      throw new MojoExecutionException(
+          "Unknown fsync policy " + mFsync + ", expected none, batch or file.", e);
+    }
+    mDaemonClient = null;
+    if (mDaemon) {
+      // Not in the shared temporary directory, where another user could plant a port file.
+      File daemonDirectory = new File(System.getProperty("user.home"), ".soy-maven-plugin");
+      try {
+        mDaemonClient = new CompileDaemonClient(daemonDirectory, mDaemonIdleTimeout * 1000L);
+      } catch (IOException e) {
+        getLog().warn("Compiling in the maven process, the soy daemon is unavailable: "
+            + e.getMessage());
+      }
+    }
+
+    List<FileSet> fileSets = getAllInputFileSets();
+    if (fileSets.isEmpty()) {
+      throw new MojoExecutionException(
+          "No soy files configured. Set inputFiles or inputFileSets.");
+    }
+    // Compiling only the affected files leaves the other outputs in an unknown state, so it
+    // is neither recorded nor cached.
+    boolean affectedOnly = null != mAffectedSince && !mAffectedSince.isEmpty();
+    boolean tracked = trackState && !affectedOnly;
+    boolean useCache = mCache && !affectedOnly;
+    if (affectedOnly && (trackState || mCache)) {
+      getLog().info("Not using the build state or output cache, compiling only the soy files "
+          + "affected by changes since " + mAffectedSince + ".");
+    }
+
+    // Decide which files to write outputs for, and which files the compiler needs to see. An
+    // incremental IDE build only looks at the files the IDE reports as changed, and a build
+    // following one by this mojo only looks at the paths it was told changed.
+    String optionsFingerprint = getOptionsFingerprint().toHex();
+    BuildState state = null;
+    Collection<String> staleFilenames = null;
+    ContextState context = null;
+    SortedMap<String, File> delta = null;
+    if (tracked && null != changedPaths && null != mLastBuild
+        && previous == mLastBuild.getState()
+        && previous.getOptionsFingerprint().equals(optionsFingerprint)) {
+      CompileMetrics.Sample sample = mMetrics.start();
+      delta = InputScanner.getDelta(fileSets, changedPaths);
+      mMetrics.stop(CompileMetrics.Phase.SCAN, sample);
+      context = null == delta ? null : mLastBuild;
+    } else if (tracked && mBuildContext.isIncremental()) {
+      context = getContextState(optionsFingerprint);
+      delta = null == context ? null : getDelta(fileSets);
+    }
+    if (null != context) {
+      if (delta.isEmpty()) {
+        getLog().info("No soy files changed.");
+        mInputs = context.getInputs();
+        mLastBuild = context;
+        reportMetrics(0);
+        return context.getState();
+      }
+      state = new BuildState(optionsFingerprint);
+      staleFilenames = getDeltaStaleFiles(delta, context, state);
+      if (null != staleFilenames) {
+        getLog().info(delta.size() + " soy files changed, " + staleFilenames.size() + " of "
+            + mInputs.size() + " soy files are stale.");
+      }
+    }
+    if (null == staleFilenames) {
+      Object event = FlightEvent.SCAN.begin();
+      mInputs = InputScanner.scan(fileSets, mThreads, mMetrics);
+      FlightEvent.SCAN.commit(event, mInputs.size());
+      // When nothing changed on disk there is nothing to read, compile or record.
+      if (tracked && null != previous && isUpToDate(previous, optionsFingerprint)) {
+        getLog().info("All " + mInputs.size() + " soy files are up to date.");
+        mLastBuild = new ContextState(mInputs, previous);
+        mBuildContext.setValue(getContextKey(), mLastBuild);
+        reportMetrics(0);
+        return previous;
+      }
+      state = null;
+      staleFilenames = mInputs.keySet();
+      if (tracked) {
+        state = new BuildState(optionsFingerprint);
+        staleFilenames = getStaleFiles(
+            mInputs.keySet().toArray(new String[mInputs.size()]), previous, state);
+        getLog().info(staleFilenames.size() + " of " + mInputs.size() + " soy files are stale.");
+      }
+    }
+    String[] inputFilenames = mInputs.keySet().toArray(new String[mInputs.size()]);
+    mState = state;
+
+    // Record the outputs before anything is written to the output directory.
+    deleteOrphanedOutputs();
+
+    // A cache hit replaces the compile entirely.
+    OutputCache cache = new OutputCache(new File(mWorkDirectory, "cache"), mCacheSize);
+    String cacheKey = useCache ? getCacheKey(inputFilenames) : null;
+    boolean cacheHit = false;
+    if (useCache && !staleFilenames.isEmpty()) {
+      Object event = FlightEvent.OUTPUT_CACHE.begin();
+      try {
+        cacheHit = cache.restore(cacheKey, Arrays.asList(inputFilenames), mOutputDirectory,
+            mOutputWriter);
+      } catch (IOException e) {
+        throw new MojoExecutionException("Unable to restore compiled soy from cache.", e);
+      } finally {
+        FlightEvent.OUTPUT_CACHE.commit(event, cacheKey, cacheHit);
+      }
+      if (cacheHit) {
+        getLog().info("Restored compiled soy from cache entry " + cacheKey);
+        mBuildContext.refresh(mOutputDirectory);
+        for (String filename : null == state ? Collections.<String>emptyList() : staleFilenames) {
+          // The restored outputs are not hashed, so only their existence is checked next time.
+          state.put(filename, state.get(filename).withOutput("", getOutputFile(filename)));
+        }
+        staleFilenames = Collections.emptyList();
+      }
+    }
+
+    // Splitting the compile into independent clusters, and finding the files affected by a
+    // branch, need the call graph.
+    DependencyGraph graph = null;
+    if (affectedOnly || !staleFilenames.isEmpty()) {
+      Map<String, SoyFileInfo> fileInfos;
+      if (null != state) {
+        fileInfos = state.getFileInfos();
+      } else {
+        fileInfos = new HashMap<String, SoyFileInfo>();
+        for (Map.Entry<String, SoySourceCache.Entry> source
+            : readSourceFiles(Arrays.asList(inputFilenames)).entrySet()) {
+          fileInfos.put(source.getKey(), source.getValue().getInfo());
+        }
+      }
+      CompileMetrics.Sample sample = mMetrics.start();
+      graph = new DependencyGraph(fileInfos);
+      mMetrics.stop(CompileMetrics.Phase.PLAN, sample);
+    }
+    if (affectedOnly) {
+      staleFilenames = getAffectedFiles(graph);
+      getLog().info(staleFilenames.size() + " of " + inputFilenames.length
+          + " soy files are affected.");
+    }
+    if (mOutputDirectory.mkdirs()) {
+      getLog().info("Created output directory: " + mOutputDirectory);
+    }
+    try {
+      if (!staleFilenames.isEmpty()) {
+        mProgress = new ProgressReporter(getLog(), mProgressInterval, staleFilenames.size());
+        compile(staleFilenames, graph);
+        mProgress.setPhase("Writing compiled soy");
+        mOutputWriter.await();
+        // The build context makes no promise to be thread safe.
+        for (File writtenFile : mWrittenFiles) {
+          mBuildContext.refresh(writtenFile);
+        }
+        getLog().info("Wrote " + mWrittenOutputs + " compiled soy files ("
+            + FileUtils.byteCountToDisplaySize(mProgress.getBytesWritten()) + "), skipped "
+            + mUnchangedOutputs + " unchanged, in " + mProgress.getElapsedMillis() + " ms.");
+      }
+      mOutputWriter.finish();
+      FileUtils.deleteQuietly(getWritingMarkerFile());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while writing compiled soy.", e);
+    } catch (ExecutionException e) {
+      throw unwrap(e, "Unable to write compiled soy.");
+    } catch (IOException e) {
+      throw new MojoExecutionException("Unable to force compiled soy to disk.", e);
+    } finally {
+      mOutputWriter.close();
+    }
+
+    mLastBuild = null == state ? null : new ContextState(mInputs, state);
+    mBuildContext.setValue(getContextKey(), mLastBuild);
+    if (mIncremental && null != state) {
+      File stateFile = getStateFile();
+      try {
+        FileUtils.forceMkdir(mWorkDirectory);
+        state.save(stateFile);
+      } catch (IOException e) {
+        throw new MojoExecutionException("Unable to write build state: " + stateFile, e);
+      }
+    }
+
+    if (useCache && !cacheHit) {
+      try {
+        cache.store(cacheKey, Arrays.asList(inputFilenames), mOutputDirectory);
+      } catch (IOException e) {
+        getLog().warn("Unable to cache compiled soy: " + e.getMessage());
+      }
+    }
+    reportMetrics(staleFilenames.size());
+    return state;
+  }
+
+  /**
+   * Writes the metrics report of the current build, and compares the build with the metrics
+   * history, if they were requested. Metrics that cannot be written do not fail the build.
+   *
+   * @param compiledFiles The number of soy files compiled.
+   * @throws MojoExecutionException If the build regressed, and regressions fail the build.
+   */
+  private void reportMetrics(int compiledFiles) throws MojoExecutionException {
+    mMetrics.setCount("inputFiles", mInputs.size());
+    mMetrics.setCount("compiledFiles", compiledFiles);
+    mMetrics.setCount("outputsWritten", mWrittenOutputs.get());
+    mMetrics.setCount("outputsUnchanged", mUnchangedOutputs.get());
+    mMetrics.setCount("outputBytes", mOutputBytes.get());
+    mMetrics.setCount("bytesWritten", null == mProgress ? 0 : mProgress.getBytesWritten());
+    mMetrics.setCount("threads", mThreads);
+    if (null != mMetricsFile) {
+      try {
+        mMetrics.write(mMetricsFile);
+      } catch (IOException e) {
+        getLog().warn("Unable to write soy compile metrics: " + e.getMessage());
+      }
+    }
+    if (null == mMetricsHistory) {
+      return;
+    }
+
+    MetricsHistory history = new MetricsHistory(mMetricsHistory, mMetricsHistorySize);
+    List<MetricsHistory.Record> previous = history.load();
+    MetricsHistory.Record current = MetricsHistory.Record.of(mMetrics);
+    List<String> regressions = mRegressionThreshold <= 0 ? Collections.<String>emptyList()
+        : MetricsHistory.findRegressions(previous, current, mRegressionThreshold);
+    // Record the build even if it regressed, so the history reflects every build.
+    try {
+      history.append(previous, current);
+    } catch (IOException e) {
+      getLog().warn("Unable to record soy compile metrics: " + e.getMessage());
+    }
+    for (String regression : regressions) {
+      getLog().warn(regression);
+    }
+    if (mFailOnRegression && !regressions.isEmpty()) {
+      throw new MojoExecutionException("The soy compile regressed by more than "
+          + mRegressionThreshold + "%, see " + mMetricsHistory);
     }
   }
 }
@@ -0,0 +1,153 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * A group of soy files compiled together as one soy file set.
+ *
+ * <p>A partition is made of whole clusters of the call graph (see
+ * {@link DependencyGraph#getClusters()}), so it never needs files from another partition.
+ * Small clusters are packed together so that each soy file set is worth its setup cost.</p>
+ */
+final class CompilePartition {
+  /** Orders partitions from smallest to largest. */
+  private static final Comparator<CompilePartition> BY_SIZE = new Comparator<CompilePartition>() {
+    @Override
+    public int compare(CompilePartition a, CompilePartition b) {
+      return Long.valueOf(a.mSourceBytes).compareTo(b.mSourceBytes);
+    }
+  };
+
+  /** The files to generate javascript for. */
+  private final SortedSet<String> mTargets = new TreeSet<String>();
+
+  /** The files the soy compiler needs to see, which includes the targets. */
+  private final SortedSet<String> mSources = new TreeSet<String>();
+
+  /** The total size of the sources in bytes. */
+  private long mSourceBytes;
+
+  /**
+   * Gets the files to generate javascript for.
+   *
+   * @return The target files, relative to the input directory.
+   */
+  public SortedSet<String> getTargets() {
+    return Collections.unmodifiableSortedSet(mTargets);
+  }
+
+  /**
+   * Gets the files the soy compiler needs to see to compile the targets.
+   *
+   * @return The source files, relative to the input directory.
+   */
+  public SortedSet<String> getSources() {
+    return Collections.unmodifiableSortedSet(mSources);
+  }
+
+  /**
+   * Gets the total size of the sources.
+   *
+   * @return A number of bytes.
+   */
+  public long getSourceBytes() {
+    return mSourceBytes;
+  }
+
+  /**
+   * Adds the targets and sources of another partition to this one.
+   *
+   * @param other The partition to absorb.
+   */
+  private void addAll(CompilePartition other) {
+    mTargets.addAll(other.mTargets);
+    mSources.addAll(other.mSources);
+    mSourceBytes += other.mSourceBytes;
+  }
+
+  /**
+   * Splits files into partitions.
+   *
+   * <p>Clusters are packed largest first into the least full partition that still has room,
+   * where each partition holds at most <code>maxPartitionBytes</code> of source, and about
+   * an equal share of the total when fewer than <code>minPartitions</code> partitions would be
+   * needed otherwise. A single cluster larger than the limit gets a partition of its own.</p>
+   *
+   * @param graph The call graph of all input files.
+   * @param filenames The files to generate javascript for.
+   * @param inputs The input files, with their sizes.
+   * @param minPartitions The number of partitions to aim for, to keep every thread busy.
+   * @param maxPartitionBytes The maximum source size of a partition made of several clusters.
+   * @return The partitions, largest first.
+   */
+  public static List<CompilePartition> plan(DependencyGraph graph, Collection<String> filenames,
+      Map<String, InputScanner.InputFile> inputs, int minPartitions, long maxPartitionBytes) {
+    Set<String> targets = new HashSet<String>(filenames);
+    List<CompilePartition> clusters = new ArrayList<CompilePartition>();
+    long totalBytes = 0;
+    for (SortedSet<String> cluster : graph.getClusters()) {
+      CompilePartition partition = new CompilePartition();
+      for (String file : cluster) {
+        if (targets.contains(file)) {
+          partition.mTargets.add(file);
+        }
+      }
+      if (partition.mTargets.isEmpty()) {
+        continue;
+      }
+      partition.mSources.addAll(graph.getTransitiveClosure(partition.mTargets));
+      for (String file : partition.mSources) {
+        partition.mSourceBytes += inputs.get(file).getLength();
+      }
+      totalBytes += partition.mSourceBytes;
+      clusters.add(partition);
+    }
+    Collections.sort(clusters, Collections.reverseOrder(BY_SIZE));
+
+    long targetBytes = Math.max(1L,
+        Math.min(maxPartitionBytes, (totalBytes + minPartitions - 1) / Math.max(1, minPartitions)));
+    PriorityQueue<CompilePartition> open = new PriorityQueue<CompilePartition>(
+        Math.max(1, minPartitions), BY_SIZE);
+    List<CompilePartition> partitions = new ArrayList<CompilePartition>();
+    for (CompilePartition cluster : clusters) {
+      CompilePartition smallest = open.peek();
+      if (null != smallest && smallest.mSourceBytes + cluster.mSourceBytes <= targetBytes) {
+        open.poll();
+        smallest.addAll(cluster);
+        open.add(smallest);
+      } else {
+        open.add(cluster);
+        partitions.add(cluster);
+      }
+    }
+    Collections.sort(partitions, Collections.reverseOrder(BY_SIZE));
+    return partitions;
+  }
+}
@@ -0,0 +1,207 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A request to compile one soy file set, as sent to a {@link CompileDaemon}. Like the daemon,
+ * it does not depend on maven.
+ *
+ * <p>It carries everything that affects the compiled output, including the contents of the
+ * soy files as the requesting execution read them, so the daemon compiles exactly what the
+ * execution would have, whatever its working directory and whatever has changed on disk
+ * since.</p>
+ */
+final class CompileRequest {
+  /** The version of the wire format, bumped whenever it changes. */
+  static final int PROTOCOL_VERSION = 3;
+
+  /** The response status when the request was compiled. */
+  static final byte STATUS_OK = 0;
+
+  /** The response status when the soy files did not compile. */
+  static final byte STATUS_SOY_ERROR = 1;
+
+  /** The response status when the daemon failed to handle the request. */
+  static final byte STATUS_FAILED = 2;
+
+  /** Whether to generate provide/require statements. */
+  private final boolean mShouldProvideRequireSoyNamespaces;
+
+  /** Whether to generate Jsdoc. */
+  private final boolean mShouldGenerateJsdoc;
+
+  /** The compile time globals. */
+  private final Map<String, String> mCompileTimeGlobals;
+
+  /** The class names of the soy plugin modules. */
+  private final List<String> mPluginModules;
+
+  /** The paths of the soy files to compile, relative to the directories of their file sets. */
+  private final List<String> mPaths;
+
+  /** The contents of each soy file, in the same order. */
+  private final List<String> mContents;
+
+  /**
+   * Constructs a CompileRequest.
+   *
+   * @param shouldProvideRequireSoyNamespaces Whether to generate provide/require statements.
+   * @param shouldGenerateJsdoc Whether to generate Jsdoc.
+   * @param compileTimeGlobals The compile time globals.
+   * @param pluginModules The class names of the soy plugin modules.
+   * @param paths The paths of the soy files to compile, relative to the directories of their
+   *     file sets.
+   * @param contents The contents of each soy file, in the same order.
+   */
+  CompileRequest(boolean shouldProvideRequireSoyNamespaces, boolean shouldGenerateJsdoc,
+      Map<String, String> compileTimeGlobals, List<String> pluginModules, List<String> paths,
+      List<String> contents) {
+    mShouldProvideRequireSoyNamespaces = shouldProvideRequireSoyNamespaces;
+    mShouldGenerateJsdoc = shouldGenerateJsdoc;
+    mCompileTimeGlobals = Collections.unmodifiableMap(compileTimeGlobals);
+    mPluginModules = Collections.unmodifiableList(pluginModules);
+    mPaths = Collections.unmodifiableList(paths);
+    mContents = Collections.unmodifiableList(contents);
+  }
+
+  /**
+   * Compiles the requested soy files in this JVM.
+   *
+   * @return The compiled javascript of each source, in the order of the sources.
+   * @throws IllegalArgumentException If a plugin module cannot be loaded.
+   */
+  public List<String> compile() {
+    return new SoyCompiler(mShouldProvideRequireSoyNamespaces, mShouldGenerateJsdoc,
+        mCompileTimeGlobals, mPluginModules).compile(mPaths, mContents);
+  }
+
+  /**
+   * Writes this request.
+   *
+   * @param out The stream to write to.
+   * @throws IOException If the request cannot be written.
+   */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(PROTOCOL_VERSION);
+    out.writeBoolean(mShouldProvideRequireSoyNamespaces);
+    out.writeBoolean(mShouldGenerateJsdoc);
+    out.writeInt(mCompileTimeGlobals.size());
+    for (Map.Entry<String, String> global : mCompileTimeGlobals.entrySet()) {
+      out.writeUTF(global.getKey());
+      out.writeUTF(global.getValue());
+    }
+    writeStrings(out, mPluginModules);
+    writeStrings(out, mPaths);
+    for (String content : mContents) {
+      writeLongString(out, content);
+    }
+  }
+
+  /**
+   * Reads a request.
+   *
+   * @param in The stream to read from.
+   * @return The request.
+   * @throws IOException If the request cannot be read or has an unknown version.
+   */
+  public static CompileRequest read(DataInput in) throws IOException {
+    int version = in.readInt();
+    if (PROTOCOL_VERSION != version) {
+      throw new IOException("Unsupported compile request version: " + version);
+    }
+    boolean shouldProvideRequireSoyNamespaces = in.readBoolean();
+    boolean shouldGenerateJsdoc = in.readBoolean();
+    Map<String, String> compileTimeGlobals = new TreeMap<String, String>();
+    for (int i = in.readInt(); i > 0; i--) {
+      compileTimeGlobals.put(in.readUTF(), in.readUTF());
+    }
+    List<String> pluginModules = readStrings(in);
+    List<String> paths = readStrings(in);
+    List<String> contents = new ArrayList<String>(paths.size());
+    for (int i = 0; i < paths.size(); i++) {
+      contents.add(readLongString(in));
+    }
+    return new CompileRequest(shouldProvideRequireSoyNamespaces, shouldGenerateJsdoc,
+        compileTimeGlobals, pluginModules, paths, contents);
+  }
+
+  /**
+   * Writes a list of short strings.
+   *
+   * @param out The stream to write to.
+   * @param strings The strings.
+   * @throws IOException If the strings cannot be written.
+   */
+  private static void writeStrings(DataOutput out, List<String> strings) throws IOException {
+    out.writeInt(strings.size());
+    for (String string : strings) {
+      out.writeUTF(string);
+    }
+  }
+
+  /**
+   * Reads a list of short strings.
+   *
+   * @param in The stream to read from.
+   * @return The strings.
+   * @throws IOException If the strings cannot be read.
+   */
+  private static List<String> readStrings(DataInput in) throws IOException {
+    int size = in.readInt();
+    List<String> strings = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) {
+      strings.add(in.readUTF());
+    }
+    return strings;
+  }
+
+  /**
+   * Writes a string of any length as length-prefixed UTF-8.
+   *
+   * @param out The stream to write to.
+   * @param string The string.
+   * @throws IOException If the string cannot be written.
+   */
+  static void writeLongString(DataOutput out, String string) throws IOException {
+    byte[] bytes = string.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by {@link #writeLongString(DataOutput, String)}.
+   *
+   * @param in The stream to read from.
+   * @return The string.
+   * @throws IOException If the string cannot be read.
+   */
+  static String readLongString(DataInput in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
@@ -0,0 +1,259 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The template call graph between a set of soy files.
+ *
+ * <p>Files are identified by their path relative to the input directory.</p>
+ */
+final class DependencyGraph {
+  /** The dependency information for each file. */
+  private final Map<String, SoyFileInfo> mFiles;
+
+  /** The files defining each basic template. */
+  private final Map<String, Set<String>> mTemplateFiles = new HashMap<String, Set<String>>();
+
+  /** The files defining each delegate template. */
+  private final Map<String, Set<String>> mDelTemplateFiles = new HashMap<String, Set<String>>();
+
+  /**
+   * Constructs a DependencyGraph.
+   *
+   * @param files The dependency information for each file, keyed by relative path.
+   */
+  DependencyGraph(Map<String, SoyFileInfo> files) {
+    mFiles = files;
+    for (Map.Entry<String, SoyFileInfo> entry : files.entrySet()) {
+      for (String template : entry.getValue().getTemplates()) {
+        index(mTemplateFiles, template, entry.getKey());
+      }
+      for (String delTemplate : entry.getValue().getDelTemplates()) {
+        index(mDelTemplateFiles, delTemplate, entry.getKey());
+      }
+    }
+  }
+
+  /**
+   * Adds a file to the set of files indexed under a name.
+   *
+   * @param index The index to add to.
+   * @param name The template name.
+   * @param file The file defining the template.
+   */
+  private static void index(Map<String, Set<String>> index, String name, String file) {
+    Set<String> files = index.get(name);
+    if (null == files) {
+      files = new TreeSet<String>();
+      index.put(name, files);
+    }
+    files.add(file);
+  }
+
+  /**
+   * Looks up the files indexed under a name.
+   *
+   * @param index The index to look in.
+   * @param name The template name.
+   * @return The files defining the template, possibly empty.
+   */
+  private static Set<String> lookup(Map<String, Set<String>> index, String name) {
+    Set<String> files = index.get(name);
+    return null == files ? Collections.<String>emptySet() : files;
+  }
+
+  /**
+   * Gets the files that call any of the given templates.
+   *
+   * @param templates Fully qualified basic template names.
+   * @param delTemplates Delegate template names.
+   * @return The calling files.
+   */
+  public SortedSet<String> getCallers(Set<String> templates, Set<String> delTemplates) {
+    SortedSet<String> callers = new TreeSet<String>();
+    for (Map.Entry<String, SoyFileInfo> entry : mFiles.entrySet()) {
+      if (!Collections.disjoint(entry.getValue().getCalls(), templates)
+          || !Collections.disjoint(entry.getValue().getDelCalls(), delTemplates)) {
+        callers.add(entry.getKey());
+      }
+    }
+    return callers;
+  }
+
+  /**
+   * Gets the files directly called by a file.
+   *
+   * @param file The calling file.
+   * @return The files defining a template or deltemplate called from <code>file</code>.
+   */
+  public SortedSet<String> getCallees(String file) {
+    SortedSet<String> callees = new TreeSet<String>();
+    SoyFileInfo info = mFiles.get(file);
+    if (null != info) {
+      for (String call : info.getCalls()) {
+        callees.addAll(lookup(mTemplateFiles, call));
+      }
+      for (String delCall : info.getDelCalls()) {
+        callees.addAll(lookup(mDelTemplateFiles, delCall));
+      }
+    }
+    return callees;
+  }
+
+  /**
+   * Gets the other files that define a template or deltemplate with the same name as one
+   * defined in a file.
+   *
+   * @param file The file.
+   * @return The files defining a template or deltemplate also defined in <code>file</code>.
+   */
+  public SortedSet<String> getRedefinitions(String file) {
+    SortedSet<String> redefinitions = new TreeSet<String>();
+    SoyFileInfo info = mFiles.get(file);
+    if (null != info) {
+      for (String template : info.getTemplates()) {
+        redefinitions.addAll(lookup(mTemplateFiles, template));
+      }
+      for (String delTemplate : info.getDelTemplates()) {
+        redefinitions.addAll(lookup(mDelTemplateFiles, delTemplate));
+      }
+      redefinitions.remove(file);
+    }
+    return redefinitions;
+  }
+
+  /**
+   * Gets the given files along with every file they transitively call, and every file that
+   * defines a template with the same name as one of those.
+   *
+   * <p>This is the smallest set of files the soy compiler needs to check the given files
+   * the same way it would in a full build: a file that redefines a template from an unchanged
+   * file must still be compiled with that file, so that the duplicate is reported.</p>
+   *
+   * @param files The root files.
+   * @return The transitive closure of <code>files</code> over the call graph and shared
+   *     template names.
+   */
+  public SortedSet<String> getTransitiveClosure(Collection<String> files) {
+    SortedSet<String> closure = new TreeSet<String>(files);
+    Deque<String> pending = new ArrayDeque<String>(files);
+    while (!pending.isEmpty()) {
+      String file = pending.pop();
+      SortedSet<String> neighbors = getCallees(file);
+      neighbors.addAll(getRedefinitions(file));
+      for (String neighbor : neighbors) {
+        if (closure.add(neighbor)) {
+          pending.push(neighbor);
+        }
+      }
+    }
+    return closure;
+  }
+
+  /**
+   * Splits the files into clusters that can be compiled independently of each other.
+   *
+   * <p>Two files are in the same cluster if one calls a template defined in the other, or if
+   * they both define a template with the same name (so that the compiler can still report the
+   * duplicate). These are the connected components of the undirected call graph.</p>
+   *
+   * @return The clusters, each in sorted order.
+   */
+  public List<SortedSet<String>> getClusters() {
+    Map<String, String> parents = new HashMap<String, String>();
+    for (String file : mFiles.keySet()) {
+      parents.put(file, file);
+    }
+    for (String file : mFiles.keySet()) {
+      for (String callee : getCallees(file)) {
+        union(parents, file, callee);
+      }
+    }
+    for (Set<String> files : mTemplateFiles.values()) {
+      for (String file : files) {
+        union(parents, files.iterator().next(), file);
+      }
+    }
+    for (Set<String> files : mDelTemplateFiles.values()) {
+      for (String file : files) {
+        union(parents, files.iterator().next(), file);
+      }
+    }
+
+    Map<String, SortedSet<String>> clusters = new HashMap<String, SortedSet<String>>();
+    for (String file : mFiles.keySet()) {
+      String root = find(parents, file);
+      SortedSet<String> cluster = clusters.get(root);
+      if (null == cluster) {
+        cluster = new TreeSet<String>();
+        clusters.put(root, cluster);
+      }
+      cluster.add(file);
+    }
+    return new ArrayList<SortedSet<String>>(clusters.values());
+  }
+
+  /**
+   * Finds the representative of a file's cluster in a union-find forest.
+   *
+   * @param parents The parent of each file in the forest.
+   * @param file The file.
+   * @return The root of the file's tree.
+   */
+  private static String find(Map<String, String> parents, String file) {
+    String root = file;
+    while (!root.equals(parents.get(root))) {
+      root = parents.get(root);
+    }
+    // Compress the path so later lookups are fast.
+    String current = file;
+    while (!current.equals(root)) {
+      String next = parents.get(current);
+      parents.put(current, root);
+      current = next;
+    }
+    return root;
+  }
+
+  /**
+   * Merges the clusters of two files in a union-find forest.
+   *
+   * @param parents The parent of each file in the forest.
+   * @param a A file.
+   * @param b Another file.
+   */
+  private static void union(Map<String, String> parents, String a, String b) {
+    String rootA = find(parents, a);
+    String rootB = find(parents, b);
+    if (!rootA.equals(rootB)) {
+      parents.put(rootB, rootA);
+    }
+  }
+}
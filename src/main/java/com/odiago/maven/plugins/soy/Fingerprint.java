@@ -0,0 +1,111 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Accumulates strings and bytes into a SHA-1 digest.
+ *
+ * <p>Every value is prefixed with its length, so that different sequences of values can never
+ * produce the same fingerprint by concatenating to the same bytes.</p>
+ */
+final class Fingerprint {
+  /** The digest being accumulated. */
+  private final MessageDigest mDigest;
+
+  /** Constructs an empty Fingerprint. */
+  Fingerprint() {
+    try {
+      mDigest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is required by every Java platform.", e);
+    }
+  }
+
+  /**
+   * Adds a string to the fingerprint.
+   *
+   * @param value The string to add.
+   * @return This fingerprint.
+   */
+  public Fingerprint add(String value) {
+    try {
+      return add(value.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 is required by every Java platform.", e);
+    }
+  }
+
+  /**
+   * Adds bytes to the fingerprint.
+   *
+   * @param value The bytes to add.
+   * @return This fingerprint.
+   */
+  public Fingerprint add(byte[] value) {
+    int length = value.length;
+    mDigest.update(new byte[] {
+      (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length,
+    });
+    mDigest.update(value);
+    return this;
+  }
+
+  /**
+   * Adds bytes to the fingerprint, the same way as {@link #add(byte[])}.
+   *
+   * @param value The bytes to add, between the position and limit of the buffer. The buffer
+   *     itself is left unchanged.
+   * @return This fingerprint.
+   */
+  public Fingerprint add(ByteBuffer value) {
+    int length = value.remaining();
+    mDigest.update(new byte[] {
+      (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length,
+    });
+    mDigest.update(value.duplicate());
+    return this;
+  }
+
+  /**
+   * Finishes the fingerprint. No more values may be added afterwards.
+   *
+   * @return The digest as a lowercase hex string.
+   */
+  public String toHex() {
+    return toHex(mDigest.digest());
+  }
+
+  /**
+   * Formats bytes as a lowercase hex string.
+   *
+   * @param bytes The bytes to format.
+   * @return The hex string.
+   */
+  public static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
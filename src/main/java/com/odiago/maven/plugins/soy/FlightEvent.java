@@ -0,0 +1,240 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Java Flight Recorder event type for a phase of soy compilation, so that a recording of a
+ * maven build shows which soy files and phases its time went to, next to GC and I/O events.
+ *
+ * <p>The plugin is built for Java 7, which has no flight recorder API, so event types are
+ * created at run time with the <code>jdk.jfr.EventFactory</code> of Java 11 and later, through
+ * reflection. On older JVMs, or if the event type is not enabled in the recording, events are
+ * not created at all and cost next to nothing.</p>
+ */
+final class FlightEvent {
+  /** The category the events are shown under. */
+  private static final String CATEGORY = "Soy";
+
+  /** The prefix of the names of the event types. */
+  private static final String PREFIX = "com.odiago.maven.plugins.soy.";
+
+  /** A directory scan for input soy files. */
+  static final FlightEvent SCAN = new FlightEvent("Scan", "Soy Scan",
+      "Finds the input soy files.",
+      new Field(int.class, "inputFiles", "Input Files"));
+
+  /** A soy file read, with its dependencies parsed, or taken from the source cache. */
+  static final FlightEvent READ = new FlightEvent("Read", "Soy Read",
+      "Reads a soy file and parses its dependencies, or gets it from the source cache.",
+      new Field(String.class, "path", "Path"),
+      new Field(long.class, "bytes", "Bytes"),
+      new Field(boolean.class, "sourceCacheHit", "Source Cache Hit"));
+
+  /** A compile of soy files, which parses, checks and generates javascript for them. */
+  static final FlightEvent COMPILE = new FlightEvent("Compile", "Soy Compile",
+      "Parses, checks and generates javascript for a partition of the soy files.",
+      new Field(String.class, "firstPath", "First Path"),
+      new Field(int.class, "files", "Files"),
+      new Field(long.class, "sourceBytes", "Source Bytes"),
+      new Field(long.class, "outputBytes", "Output Bytes"));
+
+  /** An output compared with its existing file, and written if it changed. */
+  static final FlightEvent WRITE = new FlightEvent("Write", "Soy Write",
+      "Writes the compiled javascript of a soy file, unless it is unchanged.",
+      new Field(String.class, "path", "Path"),
+      new Field(long.class, "bytes", "Bytes"),
+      new Field(boolean.class, "unchanged", "Unchanged"));
+
+  /** A lookup in the output cache. */
+  static final FlightEvent OUTPUT_CACHE = new FlightEvent("OutputCache", "Soy Output Cache",
+      "Restores the outputs of a compile from the output cache, if it has them.",
+      new Field(String.class, "key", "Key"),
+      new Field(boolean.class, "hit", "Hit"));
+
+  /** A field of an event type. */
+  private static final class Field {
+    /** The type of the field. */
+    private final Class<?> mType;
+
+    /** The name of the field. */
+    private final String mName;
+
+    /** The human readable name of the field. */
+    private final String mLabel;
+
+    /**
+     * Constructs a Field.
+     *
+     * @param type The type of the field.
+     * @param name The name of the field.
+     * @param label The human readable name of the field.
+     */
+    Field(Class<?> type, String name, String label) {
+      mType = type;
+      mName = name;
+      mLabel = label;
+    }
+  }
+
+  /** Creates events of this type, or null if events cannot be created. */
+  private final Object mFactory;
+
+  /** <code>EventFactory.newEvent()</code>. */
+  private final Method mNewEvent;
+
+  /** <code>Event.isEnabled()</code>. */
+  private final Method mIsEnabled;
+
+  /** <code>Event.begin()</code>. */
+  private final Method mBegin;
+
+  /** <code>Event.end()</code>. */
+  private final Method mEnd;
+
+  /** <code>Event.shouldCommit()</code>. */
+  private final Method mShouldCommit;
+
+  /** <code>Event.set(int, Object)</code>. */
+  private final Method mSet;
+
+  /** <code>Event.commit()</code>. */
+  private final Method mCommit;
+
+  /**
+   * Constructs a FlightEvent, registering the event type if the JVM has a flight recorder.
+   *
+   * @param name The name of the event type, after the package of the plugin.
+   * @param label The human readable name of the event type.
+   * @param description What the event covers.
+   * @param fields The fields of the event type, in the order their values are committed.
+   */
+  private FlightEvent(String name, String label, String description, Field... fields) {
+    Object factory = null;
+    Method[] methods = new Method[7];
+    try {
+      Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+      Class<?> eventClass = Class.forName("jdk.jfr.Event");
+      List<Object> annotations = new ArrayList<Object>();
+      annotations.add(newAnnotation("Name", PREFIX + name));
+      annotations.add(newAnnotation("Label", label));
+      annotations.add(newAnnotation("Description", description));
+      annotations.add(newAnnotation("Category", new String[] {CATEGORY}));
+      // Stack traces would only ever show the plugin itself.
+      annotations.add(newAnnotation("StackTrace", false));
+      Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+      Constructor<?> newDescriptor =
+          descriptorClass.getConstructor(Class.class, String.class, List.class);
+      List<Object> descriptors = new ArrayList<Object>();
+      for (Field field : fields) {
+        descriptors.add(newDescriptor.newInstance(field.mType, field.mName,
+            Collections.singletonList(newAnnotation("Label", field.mLabel))));
+      }
+      factory = factoryClass.getMethod("create", List.class, List.class)
+          .invoke(null, annotations, descriptors);
+      methods = new Method[] {
+        factoryClass.getMethod("newEvent"),
+        eventClass.getMethod("isEnabled"),
+        eventClass.getMethod("begin"),
+        eventClass.getMethod("end"),
+        eventClass.getMethod("shouldCommit"),
+        eventClass.getMethod("set", int.class, Object.class),
+        eventClass.getMethod("commit"),
+      };
+    } catch (ReflectiveOperationException e) {
+      // Java 10 and earlier have no event factory.
+      factory = null;
+    } catch (LinkageError e) {
+      factory = null;
+    }
+    mFactory = factory;
+    mNewEvent = methods[0];
+    mIsEnabled = methods[1];
+    mBegin = methods[2];
+    mEnd = methods[3];
+    mShouldCommit = methods[4];
+    mSet = methods[5];
+    mCommit = methods[6];
+  }
+
+  /**
+   * Creates a <code>jdk.jfr.AnnotationElement</code>.
+   *
+   * @param type The simple name of the annotation type, in the <code>jdk.jfr</code> package.
+   * @param value The value of the annotation.
+   * @return The annotation element.
+   * @throws ReflectiveOperationException If the annotation cannot be created.
+   */
+  private static Object newAnnotation(String type, Object value)
+      throws ReflectiveOperationException {
+    return Class.forName("jdk.jfr.AnnotationElement")
+        .getConstructor(Class.class, Object.class)
+        .newInstance(Class.forName("jdk.jfr." + type), value);
+  }
+
+  /**
+   * Starts timing an event of this type.
+   *
+   * @return The event to pass to {@link #commit(Object, Object...)}, or null if events of this
+   *     type are not being recorded.
+   */
+  public Object begin() {
+    if (null == mFactory) {
+      return null;
+    }
+    try {
+      Object event = mNewEvent.invoke(mFactory);
+      if (!(Boolean) mIsEnabled.invoke(event)) {
+        return null;
+      }
+      mBegin.invoke(event);
+      return event;
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Stops timing an event, and records it if the recording wants it.
+   *
+   * @param event The event from {@link #begin()}, or null to do nothing.
+   * @param values The values of the fields of the event, in the order of the fields.
+   */
+  public void commit(Object event, Object... values) {
+    if (null == event) {
+      return;
+    }
+    try {
+      mEnd.invoke(event);
+      if ((Boolean) mShouldCommit.invoke(event)) {
+        for (int i = 0; i < values.length; i++) {
+          mSet.invoke(event, i, values[i]);
+        }
+        mCommit.invoke(event);
+      }
+    } catch (ReflectiveOperationException e) {
+      // Recording is best effort, and never fails the build.
+      return;
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The files changed in a local git working tree since it diverged from a base revision.
+ *
+ * <p>This runs the <code>git</code> command line tool, and only uses commands that work on the
+ * local repository, so it never touches the network. Changes include commits since the merge
+ * base with the base revision, uncommitted changes, and untracked files.</p>
+ */
+final class GitChanges {
+  /** The top level directory of the working tree. */
+  private final File mTopLevel;
+
+  /** The commit the working tree diverged from the base revision at. */
+  private final String mMergeBase;
+
+  /**
+   * Constructs a GitChanges.
+   *
+   * @param topLevel The top level directory of the working tree.
+   * @param mergeBase The commit the working tree diverged from the base revision at.
+   */
+  private GitChanges(File topLevel, String mergeBase) {
+    mTopLevel = topLevel;
+    mMergeBase = mergeBase;
+  }
+
+  /**
+   * Finds the git working tree containing a directory.
+   *
+   * @param directory A directory in the working tree.
+   * @param baseRevision The revision to compare with, such as a branch name.
+   * @return The changes in the working tree since it diverged from the base revision.
+   * @throws IOException If git fails, or the directory is not in a git working tree.
+   */
+  public static GitChanges open(File directory, String baseRevision) throws IOException {
+    File topLevel = new File(git(directory, "rev-parse", "--show-toplevel").trim());
+    String mergeBase = git(directory, "merge-base", baseRevision, "HEAD").trim();
+    return new GitChanges(topLevel, mergeBase);
+  }
+
+  /**
+   * Gets the top level directory of the working tree.
+   *
+   * @return The top level directory.
+   */
+  public File getTopLevel() {
+    return mTopLevel;
+  }
+
+  /**
+   * Gets the files that were added, modified or deleted since the merge base.
+   *
+   * @return The changed files, including deleted ones.
+   * @throws IOException If git fails.
+   */
+  public Set<File> getChangedFiles() throws IOException {
+    Set<File> changed = new TreeSet<File>();
+    // Comparing the merge base with the working tree covers commits and uncommitted changes.
+    for (String path : split(git(mTopLevel, "diff", "--name-only", "--no-renames", "-z",
+        mMergeBase, "--"))) {
+      changed.add(new File(mTopLevel, path));
+    }
+    for (String path : split(git(mTopLevel, "ls-files", "--others", "--exclude-standard",
+        "-z"))) {
+      changed.add(new File(mTopLevel, path));
+    }
+    return changed;
+  }
+
+  /**
+   * Gets the contents a file had at the merge base.
+   *
+   * @param file A file in the working tree.
+   * @return The contents of the file, or null if it did not exist at the merge base.
+   * @throws IOException If git fails.
+   */
+  public String getOriginalContent(File file) throws IOException {
+    String path = mTopLevel.toURI().relativize(file.toURI()).getPath();
+    String existing = git(mTopLevel, "ls-tree", "-z", "--name-only", mMergeBase, "--", path);
+    if (split(existing).isEmpty()) {
+      return null;
+    }
+    return git(mTopLevel, "show", mMergeBase + ":" + path);
+  }
+
+  /**
+   * Splits NUL-separated git output.
+   *
+   * @param output The output.
+   * @return The non-empty fields.
+   */
+  private static List<String> split(String output) {
+    List<String> fields = new ArrayList<String>();
+    for (String field : output.split("\0")) {
+      if (!field.isEmpty()) {
+        fields.add(field);
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * Runs a git command.
+   *
+   * @param directory The directory to run it in.
+   * @param args The git arguments.
+   * @return The standard output of the command.
+   * @throws IOException If git cannot be run or fails.
+   */
+  private static String git(File directory, String... args) throws IOException {
+    List<String> command = new ArrayList<String>();
+    command.add("git");
+    command.addAll(Arrays.asList(args));
+    ProcessBuilder processBuilder = new ProcessBuilder(command)
+        .directory(directory)
+        .redirectError(ProcessBuilder.Redirect.INHERIT);
+    // Never prompt, and never fetch missing objects of a partial clone from a remote.
+    processBuilder.environment().put("GIT_TERMINAL_PROMPT", "0");
+    processBuilder.environment().put("GIT_NO_LAZY_FETCH", "1");
+    Process process = processBuilder.start();
+    InputStream stdout = process.getInputStream();
+    try {
+      process.getOutputStream().close();
+      String output = IOUtils.toString(stdout, "UTF-8");
+      if (0 != process.waitFor()) {
+        throw new IOException("git " + args[0] + " failed in " + directory);
+      }
+      return output;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while running git " + args[0], e);
+    } finally {
+      IOUtils.closeQuietly(stdout);
+      process.destroy();
+    }
+  }
+}
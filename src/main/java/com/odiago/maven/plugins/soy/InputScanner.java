@@ -0,0 +1,471 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.shared.model.fileset.FileSet;
+import org.codehaus.plexus.util.DirectoryScanner;
+
+/**
+ * Finds the files selected by file sets, walking each directory tree once and in parallel.
+ *
+ * <p>Include and exclude patterns have the same Ant-style meaning as in a maven file set, and
+ * are compiled into path matchers up front. Directories that an exclude pattern removes
+ * entirely are not walked at all. The result is a single snapshot of the input files, with
+ * the size and modification time read during the walk, so that every later step of a build
+ * sees the same files.</p>
+ */
+final class InputScanner {
+  /** The separator patterns are written with. */
+  private static final char PATTERN_SEPARATOR = '/';
+
+  /** A regular expression matching the separator of the default file system. */
+  private static final String SEPARATOR = Pattern.quote(File.separator);
+
+  /** The file set being scanned. */
+  private final FileSet mFileSet;
+
+  /** The directory of the file set. */
+  private final Path mRoot;
+
+  /** Matches the included files, relative to the root. */
+  private final PathMatcher mIncludes;
+
+  /** Matches the excluded files, relative to the root, or null if there are none. */
+  private final PathMatcher mExcludes;
+
+  /** Matches the directories whose contents are all excluded, or null if there are none. */
+  private final PathMatcher mExcludedDirectories;
+
+  /** The options to walk directories with. */
+  private final Set<FileVisitOption> mOptions;
+
+  /** Measures the time spent walking directories. */
+  private final CompileMetrics mMetrics;
+
+  /** The files found so far, keyed by path relative to the root. */
+  private final Map<String, InputFile> mFound = new ConcurrentHashMap<String, InputFile>();
+
+  /** A file found by a scan. */
+  static final class InputFile {
+    /** The file. */
+    private final File mFile;
+
+    /** The size of the file in bytes when it was found. */
+    private final long mLength;
+
+    /** The modification time of the file when it was found. */
+    private final long mLastModified;
+
+    /**
+     * Constructs an InputFile.
+     *
+     * @param file The file.
+     * @param length The size of the file in bytes.
+     * @param lastModified The modification time of the file.
+     */
+    InputFile(File file, long length, long lastModified) {
+      mFile = file;
+      mLength = length;
+      mLastModified = lastModified;
+    }
+
+    /**
+     * Gets the file.
+     *
+     * @return The file.
+     */
+    public File getFile() {
+      return mFile;
+    }
+
+    /**
+     * Gets the size of the file when it was found.
+     *
+     * @return A number of bytes.
+     */
+    public long getLength() {
+      return mLength;
+    }
+
+    /**
+     * Gets the modification time of the file when it was found.
+     *
+     * @return The modification time.
+     */
+    public long getLastModified() {
+      return mLastModified;
+    }
+  }
+
+  /** Scans one directory, then its subdirectories in parallel. */
+  private final class DirectoryScan extends RecursiveAction {
+    /** Serialization version. */
+    private static final long serialVersionUID = 1L;
+
+    /** The directory to scan. */
+    private final Path mDirectory;
+
+    /**
+     * The keys of the directory and the directories above it, to break cycles when following
+     * symbolic links.
+     */
+    private final Set<Object> mAncestors;
+
+    /**
+     * Constructs a DirectoryScan.
+     *
+     * @param directory The directory to scan.
+     * @param ancestors The keys of the directory and the directories above it.
+     */
+    DirectoryScan(Path directory, Set<Object> ancestors) {
+      mDirectory = directory;
+      mAncestors = ancestors;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void compute() {
+      final List<DirectoryScan> subdirectories = new ArrayList<DirectoryScan>();
+      // Only this directory is measured, since its subdirectories may be walked on this thread.
+      CompileMetrics.Sample sample = mMetrics.start();
+      try {
+        Files.walkFileTree(mDirectory, mOptions, 1, new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Path relative = mRoot.relativize(file);
+            if (attrs.isDirectory()) {
+              if (!isExcludedDirectory(relative)) {
+                Set<Object> ancestors = mAncestors;
+                if (isFollowingLinks()) {
+                  ancestors = new HashSet<Object>(mAncestors);
+                  if (!ancestors.add(getKey(file, attrs))) {
+                    // A link back to a directory above this one.
+                    return FileVisitResult.CONTINUE;
+                  }
+                }
+                subdirectories.add(new DirectoryScan(file, ancestors));
+              }
+            } else if (attrs.isRegularFile() && isIncluded(relative)) {
+              mFound.put(relative.toString(), new InputFile(file.toFile(), attrs.size(),
+                  attrs.lastModifiedTime().toMillis()));
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+            // Like a maven file set, skip what cannot be read, unless it is an input itself.
+            if (isIncluded(mRoot.relativize(file))) {
+              throw e;
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+      } catch (IOException e) {
+        completeExceptionally(e);
+        return;
+      } finally {
+        mMetrics.stop(CompileMetrics.Phase.SCAN, sample);
+      }
+      invokeAll(subdirectories);
+    }
+  }
+
+  /**
+   * Constructs an InputScanner.
+   *
+   * @param fileSet The file set to scan.
+   * @param metrics Measures the time spent walking directories.
+   */
+  private InputScanner(FileSet fileSet, CompileMetrics metrics) {
+    mFileSet = fileSet;
+    mMetrics = metrics;
+    mRoot = new File(fileSet.getDirectory()).toPath();
+    FileSystem fileSystem = FileSystems.getDefault();
+
+    List<String> includes = getPatterns(fileSet.getIncludes());
+    if (includes.isEmpty()) {
+      includes.add("**");
+    }
+    mIncludes = fileSystem.getPathMatcher("regex:" + toRegex(includes));
+
+    List<String> excludes = getPatterns(fileSet.getExcludes());
+    if (fileSet.isUseDefaultExcludes()) {
+      excludes.addAll(Arrays.asList(DirectoryScanner.DEFAULTEXCLUDES));
+    }
+    List<String> excludedDirectories = new ArrayList<String>();
+    for (String exclude : excludes) {
+      if (exclude.endsWith(PATTERN_SEPARATOR + "**")) {
+        excludedDirectories.add(exclude.substring(0, exclude.length() - 3));
+      }
+    }
+    mExcludes = excludes.isEmpty()
+        ? null : fileSystem.getPathMatcher("regex:" + toRegex(excludes));
+    mExcludedDirectories = excludedDirectories.isEmpty()
+        ? null : fileSystem.getPathMatcher("regex:" + toRegex(excludedDirectories));
+
+    mOptions = fileSet.isFollowSymlinks()
+        ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : EnumSet.noneOf(FileVisitOption.class);
+  }
+
+  /**
+   * Normalizes the patterns of a file set.
+   *
+   * @param patterns The patterns as configured.
+   * @return The patterns, with either separator, and with a trailing separator meaning the
+   *     whole directory, as in a maven file set.
+   */
+  private static List<String> getPatterns(List<?> patterns) {
+    List<String> normalized = new ArrayList<String>();
+    for (Object pattern : patterns) {
+      String string = String.valueOf(pattern).trim().replace('\\', PATTERN_SEPARATOR);
+      if (string.endsWith(String.valueOf(PATTERN_SEPARATOR))) {
+        string += "**";
+      }
+      normalized.add(string);
+    }
+    return normalized;
+  }
+
+  /**
+   * Translates Ant-style patterns into a regular expression matching any of them.
+   * Package-private for the tests.
+   *
+   * @param patterns The patterns, separated by forward slashes.
+   * @return A regular expression over paths of the default file system.
+   */
+  static String toRegex(List<String> patterns) {
+    StringBuilder regex = new StringBuilder();
+    for (String pattern : patterns) {
+      if (regex.length() > 0) {
+        regex.append('|');
+      }
+      regex.append("(?:");
+      String[] segments = pattern.split(String.valueOf(PATTERN_SEPARATOR), -1);
+      boolean needsSeparator = false;
+      for (int i = 0; i < segments.length; i++) {
+        if ("**".equals(segments[i])) {
+          // Any number of directories, including none.
+          if (i == segments.length - 1) {
+            regex.append(needsSeparator ? "(?:" + SEPARATOR + ".*)?" : ".*");
+          } else {
+            if (needsSeparator) {
+              regex.append(SEPARATOR);
+            }
+            regex.append("(?:.*" + SEPARATOR + ")?");
+            needsSeparator = false;
+          }
+          continue;
+        }
+        if (needsSeparator) {
+          regex.append(SEPARATOR);
+        }
+        for (char c : segments[i].toCharArray()) {
+          if ('*' == c) {
+            regex.append("[^").append(SEPARATOR).append("]*");
+          } else if ('?' == c) {
+            regex.append("[^").append(SEPARATOR).append(']');
+          } else {
+            regex.append(Pattern.quote(String.valueOf(c)));
+          }
+        }
+        needsSeparator = true;
+      }
+      regex.append(')');
+    }
+    return regex.toString();
+  }
+
+  /**
+   * Determines whether a file is selected by the file set.
+   *
+   * @param relative The file, relative to the root.
+   * @return Whether the file is included and not excluded.
+   */
+  private boolean isIncluded(Path relative) {
+    return mIncludes.matches(relative) && (null == mExcludes || !mExcludes.matches(relative));
+  }
+
+  /**
+   * Determines whether everything in a directory is excluded.
+   *
+   * @param relative The directory, relative to the root.
+   * @return Whether the directory can be skipped.
+   */
+  private boolean isExcludedDirectory(Path relative) {
+    return null != mExcludedDirectories && mExcludedDirectories.matches(relative);
+  }
+
+  /**
+   * Gets whether symbolic links are followed.
+   *
+   * @return Whether the contents of linked directories are scanned.
+   */
+  private boolean isFollowingLinks() {
+    return !mOptions.isEmpty();
+  }
+
+  /**
+   * Gets a key that identifies a directory however it is reached.
+   *
+   * @param directory The directory.
+   * @param attrs The attributes of the directory.
+   * @return The key of the directory.
+   * @throws IOException If the directory cannot be resolved.
+   */
+  private static Object getKey(Path directory, BasicFileAttributes attrs) throws IOException {
+    Object key = attrs.fileKey();
+    return null != key ? key : directory.toRealPath();
+  }
+
+  /**
+   * Finds the files selected by file sets.
+   *
+   * <p>The directories of the file sets are walked concurrently. Files are keyed by their path
+   * relative to the directory of their file set, which is also what their outputs are named
+   * after, so the same relative path may not be selected from two directories.</p>
+   *
+   * @param fileSets The file sets.
+   * @param threads The number of threads to walk directories with.
+   * @param metrics Measures the time spent walking directories.
+   * @return The selected files, keyed by path relative to the directory of their file set.
+   * @throws MojoExecutionException If a directory cannot be read, or two file sets select the
+   *     same relative path.
+   */
+  public static SortedMap<String, InputFile> scan(List<FileSet> fileSets, int threads,
+      CompileMetrics metrics) throws MojoExecutionException {
+    List<InputScanner> scanners = new ArrayList<InputScanner>();
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+    try {
+      for (FileSet fileSet : fileSets) {
+        InputScanner scanner = new InputScanner(fileSet, metrics);
+        scanners.add(scanner);
+        // Like a maven file set, a missing directory selects nothing.
+        if (Files.isDirectory(scanner.mRoot)) {
+          Set<Object> ancestors = Collections.emptySet();
+          if (scanner.isFollowingLinks()) {
+            ancestors = Collections.singleton(getKey(scanner.mRoot, Files.readAttributes(
+                scanner.mRoot, BasicFileAttributes.class)));
+          }
+          futures.add(pool.submit(scanner.new DirectoryScan(scanner.mRoot, ancestors)));
+        }
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (IOException e) {
+      throw new MojoExecutionException("Unable to scan for soy files.", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while scanning for soy files.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new MojoExecutionException("Unable to scan for soy files.", e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+
+    SortedMap<String, InputFile> found = new TreeMap<String, InputFile>();
+    Map<String, String> directories = new TreeMap<String, String>();
+    for (InputScanner scanner : scanners) {
+      for (Map.Entry<String, InputFile> entry : scanner.mFound.entrySet()) {
+        String directory = scanner.mFileSet.getDirectory();
+        String previous = directories.put(entry.getKey(), directory);
+        if (null != previous) {
+          throw new MojoExecutionException("Soy file " + entry.getKey() + " is found in both "
+              + previous + " and " + directory + ", and both would compile to the same output.");
+        }
+        found.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Determines which input files some changed paths are, without walking any directory.
+   *
+   * @param fileSets The file sets.
+   * @param paths The absolute paths that changed, which may no longer exist.
+   * @return The changed paths under the directories of the file sets, keyed by path relative
+   *     to the directory of their file set, with null for paths that are not, or no longer,
+   *     selected files; or null if one of them is a directory, whose contents only a scan can
+   *     find.
+   */
+  public static SortedMap<String, File> getDelta(List<FileSet> fileSets,
+      Collection<Path> paths) {
+    SortedMap<String, File> delta = new TreeMap<String, File>();
+    for (FileSet fileSet : fileSets) {
+      InputScanner scanner = new InputScanner(fileSet, null);
+      Path root = scanner.mRoot.toAbsolutePath();
+      for (Path path : paths) {
+        if (!path.startsWith(root) || path.equals(root)) {
+          continue;
+        }
+        if (Files.isDirectory(path)) {
+          return null;
+        }
+        Path relative = root.relativize(path);
+        String filename = relative.toString();
+        if (Files.isRegularFile(path) && scanner.isIncluded(relative)) {
+          // Named as a scan would name it, so it compares equal to the file found by the scan.
+          delta.put(filename, scanner.mRoot.resolve(relative).toFile());
+        } else if (!delta.containsKey(filename)) {
+          delta.put(filename, null);
+        }
+      }
+    }
+    return delta;
+  }
+}
@@ -0,0 +1,350 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The metrics of recent builds, used to notice when a build got slower or its output larger.
+ *
+ * <p>The history is a UTF-8 text file with one line of tab-separated metrics per build, oldest
+ * first, so it can also be read by other tools. Lines that cannot be parsed are ignored.</p>
+ *
+ * <p>A build is only compared with earlier builds that did a similar amount of work: its time
+ * with builds that compiled between half and twice as many files, and its output size, per
+ * file, with earlier builds that also compiled every input file. The baseline is the median
+ * of those builds, so a single unusual build does not move it.</p>
+ */
+final class MetricsHistory {
+  /** The fewest comparable builds a build is compared with. */
+  static final int MIN_BASELINE_BUILDS = 3;
+
+  /** The smallest increase in build time that is reported, so that noise is not. */
+  static final long MIN_TIME_REGRESSION_MILLIS = 500;
+
+  /** The first line of the history file, naming the columns. */
+  private static final String HEADER = "#started\twallMillis\tinputFiles\tcompiledFiles"
+      + "\toutputBytes\tscanMillis\treadMillis\tplanMillis\tcompileMillis\twriteMillis";
+
+  /** The metrics of one build. */
+  static final class Record {
+    /** When the build started. */
+    private final String mStarted;
+
+    /** The time the build took, in milliseconds. */
+    private final long mWallMillis;
+
+    /** The number of input files. */
+    private final long mInputFiles;
+
+    /** The number of files compiled. */
+    private final long mCompiledFiles;
+
+    /** The size of the compiled outputs, in bytes. */
+    private final long mOutputBytes;
+
+    /** The wall time of each phase, summed across threads, in milliseconds. */
+    private final long[] mPhaseMillis;
+
+    /**
+     * Constructs a Record.
+     *
+     * @param started When the build started.
+     * @param wallMillis The time the build took, in milliseconds.
+     * @param inputFiles The number of input files.
+     * @param compiledFiles The number of files compiled.
+     * @param outputBytes The size of the compiled outputs, in bytes.
+     * @param phaseMillis The wall time of each phase, in the order of
+     *     {@link CompileMetrics.Phase}, in milliseconds.
+     */
+    Record(String started, long wallMillis, long inputFiles, long compiledFiles,
+        long outputBytes, long[] phaseMillis) {
+      mStarted = started;
+      mWallMillis = wallMillis;
+      mInputFiles = inputFiles;
+      mCompiledFiles = compiledFiles;
+      mOutputBytes = outputBytes;
+      mPhaseMillis = phaseMillis.clone();
+    }
+
+    /**
+     * Creates a record from the metrics of a build.
+     *
+     * @param metrics The metrics.
+     * @return The record.
+     */
+    static Record of(CompileMetrics metrics) {
+      CompileMetrics.Phase[] phases = CompileMetrics.Phase.values();
+      long[] phaseMillis = new long[phases.length];
+      for (int i = 0; i < phases.length; i++) {
+        phaseMillis[i] = metrics.getWallMillis(phases[i]);
+      }
+      return new Record(metrics.getStarted(), metrics.getElapsedMillis(),
+          metrics.getCount("inputFiles"), metrics.getCount("compiledFiles"),
+          metrics.getCount("outputBytes"), phaseMillis);
+    }
+
+    /**
+     * Parses a line of the history file.
+     *
+     * @param line The line.
+     * @return The record, or null if the line is not a record.
+     */
+    static Record parse(String line) {
+      String[] fields = line.split("\t");
+      int phases = CompileMetrics.Phase.values().length;
+      if (line.startsWith("#") || fields.length != 5 + phases) {
+        return null;
+      }
+      try {
+        long[] phaseMillis = new long[phases];
+        for (int i = 0; i < phases; i++) {
+          phaseMillis[i] = Long.parseLong(fields[5 + i]);
+        }
+        return new Record(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+            Long.parseLong(fields[3]), Long.parseLong(fields[4]), phaseMillis);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    /**
+     * Formats this record as a line of the history file.
+     *
+     * @return The line, without a line separator.
+     */
+    String toLine() {
+      StringBuilder line = new StringBuilder(mStarted).append('\t').append(mWallMillis)
+          .append('\t').append(mInputFiles).append('\t').append(mCompiledFiles)
+          .append('\t').append(mOutputBytes);
+      for (long millis : mPhaseMillis) {
+        line.append('\t').append(millis);
+      }
+      return line.toString();
+    }
+
+    /**
+     * Determines whether this build compiled every input file.
+     *
+     * @return Whether this was a full build.
+     */
+    private boolean isFull() {
+      return mCompiledFiles > 0 && mCompiledFiles == mInputFiles;
+    }
+
+    /**
+     * Gets the size of the compiled outputs per compiled file.
+     *
+     * @return A number of bytes.
+     */
+    private long getOutputBytesPerFile() {
+      return mOutputBytes / Math.max(1, mCompiledFiles);
+    }
+  }
+
+  /** The history file. */
+  private final File mFile;
+
+  /** The number of builds to keep. */
+  private final int mSize;
+
+  /**
+   * Constructs a MetricsHistory.
+   *
+   * @param file The history file.
+   * @param size The number of builds to keep.
+   */
+  MetricsHistory(File file, int size) {
+    mFile = file;
+    mSize = Math.max(1, size);
+  }
+
+  /**
+   * Reads the recorded builds.
+   *
+   * @return The builds, oldest first, or an empty list if there is no readable history.
+   */
+  public List<Record> load() {
+    List<Record> records = new ArrayList<Record>();
+    if (!mFile.isFile()) {
+      return records;
+    }
+    try {
+      for (String line : FileUtils.readLines(mFile, "UTF-8")) {
+        Record record = Record.parse(line);
+        if (null != record) {
+          records.add(record);
+        }
+      }
+    } catch (IOException e) {
+      records.clear();
+    }
+    return records;
+  }
+
+  /**
+   * Adds a build to the history, forgetting the oldest builds beyond the number to keep.
+   *
+   * @param history The builds recorded so far, oldest first.
+   * @param record The build to add.
+   * @throws IOException If the history cannot be written.
+   */
+  public void append(List<Record> history, Record record) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    lines.add(HEADER);
+    for (Record previous : history.subList(Math.max(0, history.size() + 1 - mSize),
+        history.size())) {
+      lines.add(previous.toLine());
+    }
+    lines.add(record.toLine());
+
+    FileUtils.forceMkdir(mFile.getAbsoluteFile().getParentFile());
+    File temp = new File(mFile.getPath() + ".tmp");
+    FileUtils.writeLines(temp, "UTF-8", lines, "\n");
+    if (!temp.renameTo(mFile)) {
+      FileUtils.deleteQuietly(mFile);
+      if (!temp.renameTo(mFile)) {
+        throw new IOException("Unable to write metrics history: " + mFile);
+      }
+    }
+  }
+
+  /**
+   * Compares a build with the comparable builds in its history.
+   *
+   * @param history The earlier builds.
+   * @param current The build to compare.
+   * @param thresholdPercent How much worse than the baseline, in percent, a build may be
+   *     before it is reported.
+   * @return A description of each regression, or an empty list if there were none.
+   */
+  public static List<String> findRegressions(List<Record> history, Record current,
+      int thresholdPercent) {
+    List<String> regressions = new ArrayList<String>();
+    List<Record> similar = new ArrayList<Record>();
+    List<Record> full = new ArrayList<Record>();
+    for (Record record : history) {
+      if (record.mCompiledFiles * 2 >= current.mCompiledFiles
+          && record.mCompiledFiles <= current.mCompiledFiles * 2) {
+        similar.add(record);
+      }
+      if (record.isFull()) {
+        full.add(record);
+      }
+    }
+
+    if (similar.size() >= MIN_BASELINE_BUILDS) {
+      long baseline = median(similar, -1);
+      if (current.mWallMillis - baseline >= MIN_TIME_REGRESSION_MILLIS
+          && isRegression(current.mWallMillis, baseline, thresholdPercent)) {
+        // Point at the phase that grew the most.
+        CompileMetrics.Phase[] phases = CompileMetrics.Phase.values();
+        int worst = 0;
+        long worstBaseline = median(similar, 0);
+        for (int i = 1; i < phases.length; i++) {
+          long phaseBaseline = median(similar, i);
+          if (current.mPhaseMillis[i] - phaseBaseline
+              > current.mPhaseMillis[worst] - worstBaseline) {
+            worst = i;
+            worstBaseline = phaseBaseline;
+          }
+        }
+        regressions.add("Compiling " + current.mCompiledFiles + " soy files took "
+            + current.mWallMillis + " ms, " + getIncreasePercent(current.mWallMillis, baseline)
+            + "% more than the median of " + similar.size() + " similar builds (" + baseline
+            + " ms). The " + phases[worst].getName() + " phase grew the most, from "
+            + worstBaseline + " ms to " + current.mPhaseMillis[worst] + " ms.");
+      }
+    }
+
+    if (current.isFull() && full.size() >= MIN_BASELINE_BUILDS) {
+      List<Long> sizes = new ArrayList<Long>();
+      for (Record record : full) {
+        sizes.add(record.getOutputBytesPerFile());
+      }
+      long baseline = median(sizes);
+      long size = current.getOutputBytesPerFile();
+      if (isRegression(size, baseline, thresholdPercent)) {
+        regressions.add("The compiled soy is " + size + " bytes per file, "
+            + getIncreasePercent(size, baseline) + "% more than the median of " + full.size()
+            + " full builds (" + baseline + " bytes per file).");
+      }
+    }
+    return regressions;
+  }
+
+  /**
+   * Determines whether a value is worse than a baseline by more than a threshold.
+   *
+   * @param value The value.
+   * @param baseline The baseline.
+   * @param thresholdPercent The threshold, in percent of the baseline.
+   * @return Whether the value is a regression.
+   */
+  private static boolean isRegression(long value, long baseline, int thresholdPercent) {
+    return value * 100L > baseline * (100L + thresholdPercent);
+  }
+
+  /**
+   * Gets how much larger a value is than a baseline.
+   *
+   * @param value The value.
+   * @param baseline The baseline.
+   * @return The increase, in percent of the baseline.
+   */
+  private static long getIncreasePercent(long value, long baseline) {
+    return (value - baseline) * 100L / Math.max(1L, baseline);
+  }
+
+  /**
+   * Gets the median build time, or the median time of a phase, of some builds.
+   *
+   * @param records The builds.
+   * @param phase The index of the phase, or -1 for the time of the whole build.
+   * @return The median, in milliseconds.
+   */
+  private static long median(List<Record> records, int phase) {
+    List<Long> values = new ArrayList<Long>();
+    for (Record record : records) {
+      values.add(phase < 0 ? record.mWallMillis : record.mPhaseMillis[phase]);
+    }
+    return median(values);
+  }
+
+  /**
+   * Gets the median of some values.
+   *
+   * @param values The values, which are sorted in place.
+   * @return The median, or 0 if there are no values.
+   */
+  private static long median(List<Long> values) {
+    if (values.isEmpty()) {
+      return 0;
+    }
+    Collections.sort(values);
+    int middle = values.size() / 2;
+    return 0 == values.size() % 2
+        ? (values.get(middle - 1) + values.get(middle)) / 2 : values.get(middle);
+  }
+}
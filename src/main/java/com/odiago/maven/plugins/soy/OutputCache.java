@@ -0,0 +1,175 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * An on-disk cache of compiled javascript, keyed by a fingerprint of everything that went into
+ * the compile.
+ *
+ * <p>Each entry is a directory named after its fingerprint, holding one javascript file per
+ * input soy file at the same relative path as in the output directory. Entries are written
+ * to a temporary directory and renamed into place, so a partially written entry is never
+ * visible. Only the most recently used entries are kept.</p>
+ */
+final class OutputCache {
+  /** The suffix of entries that are still being written. */
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** The directory holding the cache entries. */
+  private final File mDirectory;
+
+  /** The maximum number of entries to keep. */
+  private final int mMaxEntries;
+
+  /**
+   * Constructs an OutputCache.
+   *
+   * @param directory The directory holding the cache entries.
+   * @param maxEntries The maximum number of entries to keep.
+   */
+  OutputCache(File directory, int maxEntries) {
+    mDirectory = directory;
+    mMaxEntries = maxEntries;
+  }
+
+  /**
+   * Computes the key of a compile, which names its cache entry: a fingerprint of the compiler
+   * options and of the path and contents of every input soy file.
+   *
+   * @param options A fingerprint of the compiler options. It is finished by this call.
+   * @param hashes A digest of the contents of each input soy file, keyed by path relative to
+   *     the input directory.
+   * @return The key.
+   */
+  public static String getKey(Fingerprint options, SortedMap<String, String> hashes) {
+    for (Map.Entry<String, String> hash : hashes.entrySet()) {
+      options.add(hash.getKey()).add(hash.getValue());
+    }
+    return options.toHex();
+  }
+
+  /**
+   * Gets the path of a cached output within an entry or the output directory.
+   *
+   * @param directory The entry or output directory.
+   * @param filename The soy file, relative to the input directory.
+   * @return The javascript file.
+   */
+  private static File getOutputFile(File directory, String filename) {
+    return new File(directory, filename + ".js");
+  }
+
+  /**
+   * Copies the outputs of a cache entry into the output directory. Outputs that already have
+   * the cached contents are not rewritten.
+   *
+   * @param fingerprint The fingerprint of the compile.
+   * @param filenames The input soy files, relative to the input directory.
+   * @param outputDirectory The output directory.
+   * @param writer The writer to write outputs with.
+   * @return Whether the entry was found and restored.
+   * @throws IOException If the outputs cannot be copied.
+   */
+  public boolean restore(String fingerprint, Collection<String> filenames, File outputDirectory,
+      OutputWriter writer) throws IOException {
+    File entry = new File(mDirectory, fingerprint);
+    for (String filename : filenames) {
+      if (!getOutputFile(entry, filename).isFile()) {
+        return false;
+      }
+    }
+    for (String filename : filenames) {
+      File cached = getOutputFile(entry, filename);
+      File output = getOutputFile(outputDirectory, filename);
+      // Leave unchanged outputs alone so their modification times stay the same.
+      if (!FileUtils.contentEquals(cached, output)) {
+        writer.write(output, ByteBuffer.wrap(FileUtils.readFileToByteArray(cached)));
+      }
+    }
+    if (!entry.setLastModified(System.currentTimeMillis())) {
+      throw new IOException("Unable to mark cache entry as used: " + entry);
+    }
+    return true;
+  }
+
+  /**
+   * Copies the outputs from the output directory into a new cache entry.
+   *
+   * @param fingerprint The fingerprint of the compile.
+   * @param filenames The input soy files, relative to the input directory.
+   * @param outputDirectory The output directory.
+   * @throws IOException If the entry cannot be written.
+   */
+  public void store(String fingerprint, Collection<String> filenames, File outputDirectory)
+      throws IOException {
+    File entry = new File(mDirectory, fingerprint);
+    if (entry.isDirectory()) {
+      return;
+    }
+    File temp = new File(mDirectory, fingerprint + TEMP_SUFFIX);
+    FileUtils.deleteDirectory(temp);
+    FileUtils.forceMkdir(temp);
+    for (String filename : filenames) {
+      FileUtils.copyFile(getOutputFile(outputDirectory, filename), getOutputFile(temp, filename));
+    }
+    if (!temp.renameTo(entry)) {
+      FileUtils.deleteDirectory(temp);
+      throw new IOException("Unable to create cache entry: " + entry);
+    }
+    evict();
+  }
+
+  /**
+   * Deletes the least recently used entries beyond the maximum number of entries.
+   *
+   * @throws IOException If an entry cannot be deleted.
+   */
+  private void evict() throws IOException {
+    File[] entries = mDirectory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isDirectory() && !file.getName().endsWith(TEMP_SUFFIX);
+      }
+    });
+    if (null == entries || entries.length <= mMaxEntries) {
+      return;
+    }
+    Arrays.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long difference = b.lastModified() - a.lastModified();
+        return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+      }
+    });
+    for (File entry : Arrays.asList(entries).subList(mMaxEntries, entries.length)) {
+      FileUtils.deleteDirectory(entry);
+    }
+  }
+}
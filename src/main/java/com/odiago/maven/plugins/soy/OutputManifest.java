@@ -0,0 +1,91 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A record of the outputs a build wrote to an output directory, so that a later build can
+ * delete the outputs of soy files that have since been deleted or renamed.
+ *
+ * <p>The manifest is a UTF-8 text file listing one output per line, by path relative to the
+ * output directory. Only outputs listed in a manifest are ever deleted, so files that some
+ * other tool put in the output directory are left alone.</p>
+ */
+final class OutputManifest {
+  /** The manifest file. */
+  private final File mFile;
+
+  /**
+   * Constructs an OutputManifest.
+   *
+   * @param file The manifest file.
+   */
+  OutputManifest(File file) {
+    mFile = file;
+  }
+
+  /**
+   * Reads the outputs recorded by the last build.
+   *
+   * @return The outputs, relative to the output directory, or an empty set if there is no
+   *     readable manifest.
+   */
+  public SortedSet<String> load() {
+    SortedSet<String> outputs = new TreeSet<String>();
+    if (!mFile.isFile()) {
+      return outputs;
+    }
+    try {
+      for (String line : FileUtils.readLines(mFile, "UTF-8")) {
+        if (!line.isEmpty()) {
+          outputs.add(line);
+        }
+      }
+    } catch (IOException e) {
+      outputs.clear();
+    }
+    return outputs;
+  }
+
+  /**
+   * Records the outputs of the current build, replacing the previous manifest.
+   *
+   * <p>The manifest is written to a temporary file that then replaces the manifest, so a build
+   * that is interrupted while saving leaves the previous manifest intact.</p>
+   *
+   * @param outputs The outputs, relative to the output directory.
+   * @throws IOException If the manifest cannot be written.
+   */
+  public void save(Collection<String> outputs) throws IOException {
+    File temp = new File(mFile.getPath() + ".tmp");
+    FileUtils.writeLines(temp, "UTF-8", outputs, "\n");
+    if (!temp.renameTo(mFile)) {
+      FileUtils.deleteQuietly(mFile);
+      if (!temp.renameTo(mFile)) {
+        throw new IOException("Unable to write output manifest: " + mFile);
+      }
+    }
+  }
+}
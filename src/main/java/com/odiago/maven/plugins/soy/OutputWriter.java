@@ -0,0 +1,401 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Writes output files atomically, and forces them to disk according to a durability policy.
+ *
+ * <p>Each output is written to a temporary file in the same directory, which then replaces the
+ * output with a rename, so a build that is killed part way never leaves a truncated output
+ * behind, though it may leave the temporary file. Outputs may be written from several threads
+ * at once.</p>
+ *
+ * <p>Writes can also be run in the background, each on its own virtual thread where the JVM
+ * supports them, or on a fixed pool of threads otherwise, so that many small writes wait on
+ * the file system at once. Outputs are encoded as UTF-8 into pooled buffers, which are reused
+ * across writes. The buffers may be direct, so that outputs waiting to be written are held
+ * outside the Java heap.</p>
+ */
+final class OutputWriter {
+  /** The maximum number of background writes that may be pending at once. */
+  private static final int MAX_PENDING_WRITES = 256;
+
+  /** The smallest buffer to allocate, so that small outputs share buffers. */
+  private static final int MIN_BUFFER_BYTES = 8192;
+
+  /** When outputs are forced to disk. */
+  enum Fsync {
+    /** Never, which leaves it to the operating system. */
+    NONE,
+
+    /** Once every output has been written, by {@link OutputWriter#finish()}. */
+    BATCH,
+
+    /** As each output is written. */
+    FILE;
+
+    /**
+     * Parses a policy name.
+     *
+     * @param name The name of the policy, in any case.
+     * @return The policy.
+     * @throws IllegalArgumentException If there is no such policy.
+     */
+    public static Fsync parse(String name) {
+      return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+    }
+  }
+
+  /** The durability policy. */
+  private final Fsync mFsync;
+
+  /** The outputs written and not yet forced to disk, under the batch policy. */
+  private final Set<File> mUnsynced = new ConcurrentSkipListSet<File>();
+
+  /** The number of threads to run background writes on, if virtual threads are unavailable. */
+  private final int mThreads;
+
+  /** Runs background writes, or null if none has been submitted yet. */
+  private ExecutorService mExecutor;
+
+  /** Limits the number of pending background writes. */
+  private final Semaphore mPending = new Semaphore(MAX_PENDING_WRITES);
+
+  /** The first failure of a background write, or null. */
+  private final AtomicReference<Exception> mFailure = new AtomicReference<Exception>();
+
+  /** UTF-8 encoders that are not in use. */
+  private final Queue<CharsetEncoder> mEncoders = new ConcurrentLinkedQueue<CharsetEncoder>();
+
+  /** Whether to allocate direct buffers, outside the Java heap. */
+  private final boolean mDirect;
+
+  /** Buffers that are not in use. */
+  private final Queue<ByteBuffer> mBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+  /** The number of buffers in {@link #mBuffers}. */
+  private final AtomicInteger mPooledBuffers = new AtomicInteger();
+
+  /**
+   * Constructs an OutputWriter.
+   *
+   * @param fsync The durability policy.
+   * @param threads The number of threads to run background writes on, if virtual threads are
+   *     unavailable.
+   * @param direct Whether to encode outputs into direct buffers, outside the Java heap.
+   */
+  OutputWriter(Fsync fsync, int threads, boolean direct) {
+    mFsync = fsync;
+    mThreads = Math.max(1, threads);
+    mDirect = direct;
+  }
+
+  /**
+   * Gets an upper bound on the length of text encoded as UTF-8.
+   *
+   * @param text The text.
+   * @return The most bytes the text can take, which is exact unless it holds unpaired
+   *     surrogates.
+   */
+  private static long getMaxEncodedLength(CharSequence text) {
+    long length = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+          && Character.isLowSurrogate(text.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Encodes text as UTF-8 into a pooled buffer. Malformed text is replaced, as
+   * {@link String#getBytes(java.nio.charset.Charset)} would.
+   *
+   * @param text The text.
+   * @return A buffer holding the encoded text between its position and limit, which should be
+   *     passed to {@link #release(ByteBuffer)} once it is no longer used.
+   */
+  public ByteBuffer encode(String text) {
+    CharsetEncoder encoder = mEncoders.poll();
+    if (null == encoder) {
+      encoder = StandardCharsets.UTF_8.newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+    try {
+      long length = getMaxEncodedLength(text);
+      ByteBuffer buffer = mBuffers.poll();
+      if (null != buffer) {
+        mPooledBuffers.decrementAndGet();
+      }
+      if (null == buffer || buffer.capacity() < length) {
+        if (null != buffer) {
+          release(buffer);
+        }
+        // Round up to a power of two, so that released buffers fit most later outputs.
+        int capacity = (int) Math.min(Integer.MAX_VALUE,
+            Math.max(MIN_BUFFER_BYTES, Long.highestOneBit(Math.max(1L, length - 1)) << 1));
+        buffer = mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+      }
+      buffer.clear();
+      CoderResult result = encoder.reset().encode(CharBuffer.wrap(text), buffer, true);
+      if (!result.isUnderflow()) {
+        throw new IllegalStateException("Unable to encode output: " + result);
+      }
+      encoder.flush(buffer);
+      buffer.flip();
+      return buffer;
+    } finally {
+      mEncoders.add(encoder);
+    }
+  }
+
+  /**
+   * Returns a buffer from {@link #encode(String)} to the pool.
+   *
+   * @param buffer The buffer, which must not be used afterwards.
+   */
+  public void release(ByteBuffer buffer) {
+    if (mPooledBuffers.incrementAndGet() <= MAX_PENDING_WRITES) {
+      mBuffers.add(buffer);
+    } else {
+      mPooledBuffers.decrementAndGet();
+    }
+  }
+
+  /**
+   * Creates the executor for background writes.
+   *
+   * @param threads The number of threads to use if virtual threads are unavailable.
+   * @return An executor that starts a virtual thread per task, or a fixed thread pool.
+   */
+  private static ExecutorService newExecutor(int threads) {
+    try {
+      // Only Java 21 and later have virtual threads, which wait on the file system without
+      // holding on to a platform thread.
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(threads);
+    }
+  }
+
+  /**
+   * Runs a write in the background. Blocks while too many writes are pending.
+   *
+   * @param write The write.
+   * @throws InterruptedException If interrupted while waiting for pending writes.
+   * @throws ExecutionException If an earlier background write failed.
+   */
+  public void submit(final Callable<Void> write) throws InterruptedException, ExecutionException {
+    checkFailure();
+    mPending.acquire();
+    try {
+      synchronized (this) {
+        if (null == mExecutor) {
+          mExecutor = newExecutor(mThreads);
+        }
+        mExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              write.call();
+            } catch (Exception e) {
+              mFailure.compareAndSet(null, e);
+            } finally {
+              mPending.release();
+            }
+          }
+        });
+      }
+    } catch (RuntimeException e) {
+      mPending.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for every background write submitted so far to finish.
+   *
+   * @throws InterruptedException If interrupted while waiting.
+   * @throws ExecutionException If a background write failed.
+   */
+  public void await() throws InterruptedException, ExecutionException {
+    mPending.acquire(MAX_PENDING_WRITES);
+    mPending.release(MAX_PENDING_WRITES);
+    checkFailure();
+  }
+
+  /**
+   * Throws the first failure of a background write, if there was one.
+   *
+   * @throws ExecutionException If a background write failed.
+   */
+  private void checkFailure() throws ExecutionException {
+    Exception failure = mFailure.get();
+    if (null != failure) {
+      throw new ExecutionException(failure);
+    }
+  }
+
+  /** Stops the threads running background writes, abandoning any that are pending. */
+  public synchronized void close() {
+    if (null != mExecutor) {
+      mExecutor.shutdownNow();
+      mExecutor = null;
+    }
+  }
+
+  /**
+   * Gets the temporary file an output is written to before it replaces the output.
+   *
+   * @param file The output file.
+   * @return The temporary file, a hidden file in the same directory.
+   */
+  public static File getTempFile(File file) {
+    return new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".tmp");
+  }
+
+  /**
+   * Replaces the contents of a file, creating its directory if needed.
+   *
+   * @param file The file.
+   * @param content The new contents, between the position and limit of the buffer. The buffer
+   *     itself is left unchanged.
+   * @throws IOException If the file cannot be written.
+   */
+  public void write(File file, ByteBuffer content) throws IOException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    FileUtils.forceMkdir(directory);
+    // In the same directory, so the rename stays on one file system. A build killed before the
+    // rename leaves the file behind, and the name is the same on every build, so the next
+    // build can find it and delete it.
+    File temp = getTempFile(file);
+    try {
+      FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+        ByteBuffer remaining = content.duplicate();
+        while (remaining.hasRemaining()) {
+          channel.write(remaining);
+        }
+        if (Fsync.FILE == mFsync) {
+          channel.force(true);
+        }
+      } finally {
+        channel.close();
+      }
+      try {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      FileUtils.deleteQuietly(temp);
+      throw e;
+    }
+
+    if (Fsync.FILE == mFsync) {
+      syncDirectory(directory.toPath());
+    } else if (Fsync.BATCH == mFsync) {
+      mUnsynced.add(file.getAbsoluteFile());
+    }
+  }
+
+  /**
+   * Forces the outputs written since the last call to disk, under the batch policy.
+   *
+   * @throws IOException If an output cannot be forced to disk.
+   */
+  public void finish() throws IOException {
+    Set<Path> directories = new HashSet<Path>();
+    for (File file : mUnsynced) {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+      directories.add(file.getParentFile().toPath());
+      mUnsynced.remove(file);
+    }
+    for (Path directory : directories) {
+      syncDirectory(directory);
+    }
+  }
+
+  /**
+   * Forces the entries of a directory to disk, so that renames into it survive a crash.
+   *
+   * @param directory The directory.
+   */
+  private static void syncDirectory(Path directory) {
+    try {
+      FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException e) {
+      // Some platforms, such as Windows, cannot open or force directories. Renames there are
+      // made durable by the file system itself.
+      return;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Reports the progress of a compile at most once per interval, instead of once per file.
+ *
+ * <p>Progress is counted from any thread. Whichever thread first counts progress after the
+ * interval has passed logs a line with the phase, the number of files done, the throughput,
+ * the bytes written and an estimate of the time left.</p>
+ */
+final class ProgressReporter {
+  /** The log to report to. */
+  private final Log mLog;
+
+  /** The shortest time between reports, in nanoseconds, or 0 to never report. */
+  private final long mIntervalNanos;
+
+  /** The number of files to compile. */
+  private final int mTotal;
+
+  /** When the compile started, from {@link System#nanoTime()}. */
+  private final long mStartNanos;
+
+  /** When the next report is due, from {@link System#nanoTime()}. */
+  private final AtomicLong mNextReportNanos;
+
+  /** The number of files compiled. */
+  private final AtomicInteger mCompiled = new AtomicInteger();
+
+  /** The number of files whose output has been written or found unchanged. */
+  private final AtomicInteger mDone = new AtomicInteger();
+
+  /** The number of bytes of output written. */
+  private final AtomicLong mBytesWritten = new AtomicLong();
+
+  /** What the compile is doing, as shown at the start of each report. */
+  private volatile String mPhase = "Compiling soy";
+
+  /**
+   * Constructs a ProgressReporter, starting the clock.
+   *
+   * @param log The log to report to.
+   * @param intervalSeconds The shortest time between reports, in seconds, or 0 to never report.
+   * @param total The number of files to compile.
+   */
+  ProgressReporter(Log log, int intervalSeconds, int total) {
+    mLog = log;
+    mIntervalNanos = TimeUnit.SECONDS.toNanos(Math.max(0, intervalSeconds));
+    mTotal = total;
+    mStartNanos = System.nanoTime();
+    mNextReportNanos = new AtomicLong(mStartNanos + mIntervalNanos);
+  }
+
+  /**
+   * Sets what the compile is doing.
+   *
+   * @param phase A short description, such as "Writing compiled soy".
+   */
+  public void setPhase(String phase) {
+    mPhase = phase;
+  }
+
+  /**
+   * Counts compiled files.
+   *
+   * @param files The number of files that were compiled.
+   */
+  public void compiled(int files) {
+    mCompiled.addAndGet(files);
+    maybeReport();
+  }
+
+  /**
+   * Counts a file whose output is done.
+   *
+   * @param bytesWritten The number of bytes written, or 0 if the output was unchanged.
+   */
+  public void done(long bytesWritten) {
+    mDone.incrementAndGet();
+    mBytesWritten.addAndGet(bytesWritten);
+    maybeReport();
+  }
+
+  /**
+   * Gets the number of bytes of output written.
+   *
+   * @return A number of bytes.
+   */
+  public long getBytesWritten() {
+    return mBytesWritten.get();
+  }
+
+  /**
+   * Gets the time since the compile started.
+   *
+   * @return A number of milliseconds.
+   */
+  public long getElapsedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos);
+  }
+
+  /** Logs a report if one is due, and no other thread is logging it. */
+  private void maybeReport() {
+    if (0 == mIntervalNanos || !mLog.isInfoEnabled()) {
+      return;
+    }
+    long now = System.nanoTime();
+    long due = mNextReportNanos.get();
+    if (now - due < 0 || !mNextReportNanos.compareAndSet(due, now + mIntervalNanos)) {
+      return;
+    }
+
+    int done = mDone.get();
+    double seconds = (now - mStartNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    double filesPerSecond = done / Math.max(seconds, 0.001);
+    StringBuilder report = new StringBuilder()
+        .append(mPhase).append(": ").append(done).append(" of ").append(mTotal)
+        .append(" files done (").append(done * 100L / Math.max(1, mTotal)).append("%), ")
+        .append(mCompiled.get()).append(" compiled, ")
+        .append(Math.round(filesPerSecond)).append(" files/s, ")
+        .append(FileUtils.byteCountToDisplaySize(mBytesWritten.get())).append(" written");
+    if (done > 0) {
+      report.append(", about ").append(Math.round((mTotal - done) / filesPerSecond))
+          .append(" s left");
+    }
+    mLog.info(report.append('.').toString());
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.template.soy.SoyFileSet;
+import com.google.template.soy.jssrc.SoyJsSrcOptions;
+
+/**
+ * Compiles soy sources to javascript with a fixed set of options.
+ *
+ * <p>It only depends on the soy compiler, not on maven, because the compile daemon uses it
+ * too, and the daemon runs with the classpath of the plugin, which lacks the maven API that
+ * maven provides to plugins itself.</p>
+ */
+final class SoyCompiler {
+  /** Whether to generate provide/require statements. */
+  private final boolean mShouldProvideRequireSoyNamespaces;
+
+  /** Whether to generate Jsdoc. */
+  private final boolean mShouldGenerateJsdoc;
+
+  /** The compile time globals. */
+  private final Map<String, String> mCompileTimeGlobals;
+
+  /** The class names of the soy plugin modules. */
+  private final List<String> mPluginModules;
+
+  /**
+   * Constructs a SoyCompiler.
+   *
+   * @param shouldProvideRequireSoyNamespaces Whether to generate provide/require statements.
+   * @param shouldGenerateJsdoc Whether to generate Jsdoc.
+   * @param compileTimeGlobals The compile time globals.
+   * @param pluginModules The class names of the soy plugin modules.
+   */
+  SoyCompiler(boolean shouldProvideRequireSoyNamespaces, boolean shouldGenerateJsdoc,
+      Map<String, String> compileTimeGlobals, List<String> pluginModules) {
+    mShouldProvideRequireSoyNamespaces = shouldProvideRequireSoyNamespaces;
+    mShouldGenerateJsdoc = shouldGenerateJsdoc;
+    mCompileTimeGlobals = compileTimeGlobals;
+    mPluginModules = pluginModules;
+  }
+
+  /**
+   * Gets the options for generating javascript.
+   *
+   * @return The javascript generation options.
+   */
+  public SoyJsSrcOptions getJsSrcOptions() {
+    SoyJsSrcOptions jsSrcOptions = new SoyJsSrcOptions();
+    jsSrcOptions.setShouldProvideRequireSoyNamespaces(mShouldProvideRequireSoyNamespaces);
+    jsSrcOptions.setShouldGenerateJsdoc(mShouldGenerateJsdoc);
+    return jsSrcOptions;
+  }
+
+  /**
+   * Builds a soy file set.
+   *
+   * @param paths The paths of the soy files, which name them in the generated code and in
+   *     errors. The files themselves are never read.
+   * @param contents The contents of each soy file, in the same order.
+   * @return The soy file set.
+   * @throws IllegalArgumentException If a plugin module cannot be loaded.
+   */
+  public SoyFileSet getFileSet(List<String> paths, List<String> contents) {
+    SoyFileSet.Builder soyFileSetBuilder = new SoyFileSet.Builder()
+        .setCompileTimeGlobals(mCompileTimeGlobals);
+    for (int i = 0; i < paths.size(); i++) {
+      soyFileSetBuilder.add(contents.get(i), paths.get(i));
+    }
+    return SoyInjector.build(soyFileSetBuilder, mPluginModules);
+  }
+
+  /**
+   * Compiles soy files in a single soy file set.
+   *
+   * @param paths The paths of the soy files, which name them in the generated code and in
+   *     errors. The files themselves are never read.
+   * @param contents The contents of each soy file, in the same order.
+   * @return The compiled javascript of each soy file, in the same order.
+   * @throws IllegalArgumentException If a plugin module cannot be loaded.
+   */
+  public List<String> compile(List<String> paths, List<String> contents) {
+    return getFileSet(paths, contents).compileToJsSrc(getJsSrcOptions(), null);
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The dependency-relevant facts about a single soy file: its namespace, the templates and
+ * deltemplates it defines, and the templates and deltemplates it calls.
+ *
+ * <p>This is extracted with a lightweight scan of the soy source rather than a full parse, so
+ * it may over-report calls (for example, calls inside comments). That only ever causes extra
+ * files to be recompiled, never too few.</p>
+ */
+final class SoyFileInfo {
+  /** Matches the namespace declaration. */
+  private static final Pattern NAMESPACE = Pattern.compile("\\{namespace\\s+([\\w.]+)");
+
+  /** Matches an alias declaration. */
+  private static final Pattern ALIAS = Pattern.compile("\\{alias\\s+([\\w.]+)\\s*\\}");
+
+  /** Matches a basic template definition. */
+  private static final Pattern TEMPLATE = Pattern.compile("\\{template\\s+(\\.?[\\w.]+)");
+
+  /** Matches a delegate template definition. */
+  private static final Pattern DELTEMPLATE = Pattern.compile("\\{deltemplate\\s+([\\w.]+)");
+
+  /** Matches a basic template call. */
+  private static final Pattern CALL = Pattern.compile("\\{call\\s+(\\.?[\\w.]+)");
+
+  /** Matches a delegate template call. */
+  private static final Pattern DELCALL = Pattern.compile("\\{delcall\\s+([\\w.]+)");
+
+  /** The namespace of the file, or the empty string if none was declared. */
+  private final String mNamespace;
+
+  /** The fully qualified names of the templates defined in the file. */
+  private final SortedSet<String> mTemplates;
+
+  /** The names of the delegate templates defined in the file. */
+  private final SortedSet<String> mDelTemplates;
+
+  /** The fully qualified names of the templates called from the file. */
+  private final SortedSet<String> mCalls;
+
+  /** The names of the delegate templates called from the file. */
+  private final SortedSet<String> mDelCalls;
+
+  /**
+   * Constructs a SoyFileInfo.
+   *
+   * @param namespace The namespace of the file.
+   * @param templates The fully qualified names of the templates defined in the file.
+   * @param delTemplates The names of the delegate templates defined in the file.
+   * @param calls The fully qualified names of the templates called from the file.
+   * @param delCalls The names of the delegate templates called from the file.
+   */
+  SoyFileInfo(String namespace, SortedSet<String> templates, SortedSet<String> delTemplates,
+      SortedSet<String> calls, SortedSet<String> delCalls) {
+    mNamespace = namespace;
+    mTemplates = Collections.unmodifiableSortedSet(templates);
+    mDelTemplates = Collections.unmodifiableSortedSet(delTemplates);
+    mCalls = Collections.unmodifiableSortedSet(calls);
+    mDelCalls = Collections.unmodifiableSortedSet(delCalls);
+  }
+
+  /**
+   * Scans the source of a soy file.
+   *
+   * @param source The contents of the soy file.
+   * @return The dependency information for the file.
+   */
+  public static SoyFileInfo scan(CharSequence source) {
+    Matcher namespaceMatcher = NAMESPACE.matcher(source);
+    String namespace = namespaceMatcher.find() ? namespaceMatcher.group(1) : "";
+
+    Map<String, String> aliases = new HashMap<String, String>();
+    Matcher aliasMatcher = ALIAS.matcher(source);
+    while (aliasMatcher.find()) {
+      String aliased = aliasMatcher.group(1);
+      aliases.put(aliased.substring(aliased.lastIndexOf('.') + 1), aliased);
+    }
+
+    SortedSet<String> templates = new TreeSet<String>();
+    Matcher templateMatcher = TEMPLATE.matcher(source);
+    while (templateMatcher.find()) {
+      templates.add(resolve(templateMatcher.group(1), namespace, aliases));
+    }
+
+    SortedSet<String> calls = new TreeSet<String>();
+    Matcher callMatcher = CALL.matcher(source);
+    while (callMatcher.find()) {
+      calls.add(resolve(callMatcher.group(1), namespace, aliases));
+    }
+
+    return new SoyFileInfo(namespace, templates, findAll(DELTEMPLATE, source),
+        calls, findAll(DELCALL, source));
+  }
+
+  /**
+   * Collects the first group of every match of a pattern.
+   *
+   * @param pattern The pattern to match.
+   * @param source The text to search.
+   * @return The matched names.
+   */
+  private static SortedSet<String> findAll(Pattern pattern, CharSequence source) {
+    SortedSet<String> names = new TreeSet<String>();
+    Matcher matcher = pattern.matcher(source);
+    while (matcher.find()) {
+      names.add(matcher.group(1));
+    }
+    return names;
+  }
+
+  /**
+   * Resolves a template name as written in a soy file into a fully qualified name.
+   *
+   * @param name The name as written, possibly relative (".foo") or aliased ("alias.foo").
+   * @param namespace The namespace of the file.
+   * @param aliases The aliases declared in the file, keyed by their last name segment.
+   * @return The fully qualified template name.
+   */
+  private static String resolve(String name, String namespace, Map<String, String> aliases) {
+    if (name.startsWith(".")) {
+      return namespace + name;
+    }
+    int dot = name.indexOf('.');
+    if (dot > 0) {
+      String aliased = aliases.get(name.substring(0, dot));
+      if (null != aliased) {
+        return aliased + name.substring(dot);
+      }
+    }
+    return name;
+  }
+
+  /**
+   * Gets the namespace of the file.
+   *
+   * @return The namespace, or the empty string if none was declared.
+   */
+  public String getNamespace() {
+    return mNamespace;
+  }
+
+  /**
+   * Gets the templates defined in the file.
+   *
+   * @return The fully qualified template names.
+   */
+  public SortedSet<String> getTemplates() {
+    return mTemplates;
+  }
+
+  /**
+   * Gets the delegate templates defined in the file.
+   *
+   * @return The delegate template names.
+   */
+  public SortedSet<String> getDelTemplates() {
+    return mDelTemplates;
+  }
+
+  /**
+   * Gets the templates called from the file.
+   *
+   * @return The fully qualified template names.
+   */
+  public SortedSet<String> getCalls() {
+    return mCalls;
+  }
+
+  /**
+   * Gets the delegate templates called from the file.
+   *
+   * @return The delegate template names.
+   */
+  public SortedSet<String> getDelCalls() {
+    return mDelCalls;
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.inject.Guice;
+import com.google.inject.Module;
+import com.google.template.soy.SoyFileSet;
+import com.google.template.soy.SoyModule;
+
+/**
+ * Manages the Guice injector that soy file sets are built with.
+ *
+ * <p>The soy compiler wires itself together with a Guice injector, and
+ * {@link SoyFileSet.Builder} picks up its factory from whichever injector was created last
+ * (through static injection). This class creates one injector per plugin class realm, made of
+ * the standard {@link SoyModule} plus any modules providing custom functions and print
+ * directives, and shares it between all executions that use the same modules.</p>
+ *
+ * <p>It is also used by the compile daemon, so it does not depend on maven.</p>
+ */
+final class SoyInjector {
+  /** The class names of the plugin modules in the current injector, or null if none yet. */
+  private static List<String> currentModules;
+
+  /** Prevents instantiation of this utility class. */
+  private SoyInjector() {
+  }
+
+  /**
+   * Makes the injector for a set of plugin modules current, creating it if necessary.
+   *
+   * @param moduleClassNames The class names of the plugin modules.
+   * @throws IllegalArgumentException If a module cannot be loaded.
+   */
+  public static synchronized void install(List<String> moduleClassNames) {
+    if (moduleClassNames.equals(currentModules)) {
+      return;
+    }
+    if (null == currentModules && moduleClassNames.isEmpty()) {
+      // The soy compiler creates the standard injector itself the first time it is used.
+      currentModules = new ArrayList<String>();
+      return;
+    }
+    List<Module> modules = new ArrayList<Module>();
+    modules.add(new SoyModule());
+    for (String className : moduleClassNames) {
+      try {
+        Class<?> moduleClass = Class.forName(className, true, SoyInjector.class.getClassLoader());
+        modules.add(moduleClass.asSubclass(Module.class).getConstructor().newInstance());
+      } catch (ClassNotFoundException e) {
+        throw new IllegalArgumentException("Soy plugin module not found: " + className
+            + ". Add the artifact containing it as a dependency of the plugin.", e);
+      } catch (ClassCastException e) {
+        throw new IllegalArgumentException("Not a Guice module: " + className, e);
+      } catch (NoSuchMethodException e) {
+        throw new IllegalArgumentException("Soy plugin module " + className
+            + " has no public constructor without arguments.", e);
+      } catch (InvocationTargetException e) {
+        throw new IllegalArgumentException("Unable to create soy plugin module: " + className,
+            e.getCause());
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalArgumentException("Unable to create soy plugin module: " + className, e);
+      }
+    }
+    // Creating the injector statically injects the soy file set factory used by builders.
+    Guice.createInjector(modules);
+    currentModules = new ArrayList<String>(moduleClassNames);
+  }
+
+  /**
+   * Builds a soy file set with the injector for a set of plugin modules.
+   *
+   * <p>The factory a builder uses is only read when it builds, so building happens while no
+   * other execution can switch the injector.</p>
+   *
+   * @param builder The soy file set builder.
+   * @param moduleClassNames The class names of the plugin modules.
+   * @return The soy file set.
+   * @throws IllegalArgumentException If a module cannot be loaded.
+   */
+  public static synchronized SoyFileSet build(SoyFileSet.Builder builder,
+      List<String> moduleClassNames) {
+    install(moduleClassNames);
+    return builder.build();
+  }
+}
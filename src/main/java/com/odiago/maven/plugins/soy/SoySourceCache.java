@@ -0,0 +1,253 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded, least recently used cache of soy file contents and their dependency
+ * information, shared by every execution of the plugin in the same JVM.
+ *
+ * <p>The plugin's classes stay loaded between executions in a reactor build and between builds
+ * in a long-lived maven process, so later executions can reuse files read by earlier ones.
+ * Entries are keyed by absolute path and are only used while the file's size, modification
+ * time and, where the file system has one, status change time are unchanged, compared at the
+ * full precision of the file system.</p>
+ *
+ * <p>A file rewritten within the timestamp granularity of the file system can keep the same
+ * modification time, so, as in git's index, an entry is never trusted for a file that was
+ * modified shortly before it was read; such files are read again each time they are used.</p>
+ */
+final class SoySourceCache {
+  /**
+   * How long after being modified a file must have been read for its entry to be trusted, in
+   * milliseconds: the coarsest modification time granularity of common file systems.
+   */
+  private static final long RACY_MILLIS = 2000;
+
+  /** The attributes of a file that change when it is written, in the order they are compared. */
+  private static final String[] STAMP_ATTRIBUTES = {"size", "lastModifiedTime", "ctime"};
+
+  /** The cache shared by all executions in this JVM. */
+  private static final SoySourceCache SHARED = new SoySourceCache();
+
+  /** The cached files, from least to most recently used. */
+  private final LinkedHashMap<String, Entry> mEntries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /** The maximum total number of characters of cached content. */
+  private long mMaxChars;
+
+  /** The total number of characters of cached content. */
+  private long mChars;
+
+  /** A soy file as it was read from disk. */
+  static final class Entry {
+    /** The size of the file in bytes when it was read. */
+    private final long mLength;
+
+    /** The modification time of the file when it was read. */
+    private final long mLastModified;
+
+    /** The time the file was read, in milliseconds since the epoch. */
+    private final long mReadTime;
+
+    /** The attributes of the file that change when it is written, or null if unavailable. */
+    private final String mStamp;
+
+    /** The contents of the file. */
+    private final String mContent;
+
+    /** A hex digest of the bytes of the file. */
+    private final String mHash;
+
+    /** The dependency information for the file. */
+    private final SoyFileInfo mInfo;
+
+    /**
+     * Reads a soy file.
+     *
+     * @param file The soy file.
+     * @throws IOException If the file cannot be read.
+     */
+    Entry(File file) throws IOException {
+      // Stat before reading, so that a concurrent change makes the entry look stale.
+      mReadTime = System.currentTimeMillis();
+      mStamp = stat(file);
+      mLength = file.length();
+      mLastModified = file.lastModified();
+      byte[] bytes = Files.readAllBytes(file.toPath());
+      mContent = new String(bytes, "UTF-8");
+      mHash = new Fingerprint().add(bytes).toHex();
+      mInfo = SoyFileInfo.scan(mContent);
+    }
+
+    /**
+     * Gets the size of the file when it was read.
+     *
+     * @return A number of bytes.
+     */
+    public long getLength() {
+      return mLength;
+    }
+
+    /**
+     * Gets the modification time of the file when it was read.
+     *
+     * @return The modification time.
+     */
+    public long getLastModified() {
+      return mLastModified;
+    }
+
+    /**
+     * Gets the contents of the file.
+     *
+     * @return The soy source.
+     */
+    public String getContent() {
+      return mContent;
+    }
+
+    /**
+     * Gets a digest of the bytes of the file.
+     *
+     * @return A hex digest.
+     */
+    public String getHash() {
+      return mHash;
+    }
+
+    /**
+     * Gets the dependency information for the file.
+     *
+     * @return The dependency information.
+     */
+    public SoyFileInfo getInfo() {
+      return mInfo;
+    }
+
+    /**
+     * Determines whether the file is certainly unchanged since it was read.
+     *
+     * @param file The soy file.
+     * @return Whether the entry may be used in place of reading the file.
+     */
+    private boolean isUpToDate(File file) {
+      return mLastModified + RACY_MILLIS <= mReadTime && null != mStamp
+          && mStamp.equals(stat(file));
+    }
+  }
+
+  /**
+   * Gets the attributes of a file that change when it is written.
+   *
+   * @param file The file.
+   * @return The attributes, or null if they cannot be read.
+   */
+  private static String stat(File file) {
+    Path path = file.toPath();
+    boolean unix = path.getFileSystem().supportedFileAttributeViews().contains("unix");
+    try {
+      Map<String, Object> attributes = unix
+          ? Files.readAttributes(path, "unix:size,lastModifiedTime,ctime")
+          : Files.readAttributes(path, "size,lastModifiedTime");
+      StringBuilder stamp = new StringBuilder();
+      for (String name : STAMP_ATTRIBUTES) {
+        stamp.append(attributes.get(name)).append(' ');
+      }
+      return stamp.toString();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Gets the cache shared by all executions in this JVM.
+   *
+   * @return The shared cache.
+   */
+  public static SoySourceCache getShared() {
+    return SHARED;
+  }
+
+  /**
+   * Sets the maximum amount of content to keep, evicting entries if necessary.
+   *
+   * @param maxChars A number of characters, or 0 to keep nothing.
+   */
+  public synchronized void setMaxChars(long maxChars) {
+    mMaxChars = maxChars;
+    evict();
+  }
+
+  /**
+   * Determines whether an up to date copy of a soy file is cached.
+   *
+   * @param file The soy file.
+   * @return Whether {@link #get(File)} would return the file without reading it.
+   */
+  public synchronized boolean contains(File file) {
+    Entry entry = mEntries.get(file.getAbsolutePath());
+    return null != entry && entry.isUpToDate(file);
+  }
+
+  /**
+   * Gets a soy file, reading it from disk unless an up to date copy is cached.
+   *
+   * @param file The soy file.
+   * @return The contents and dependency information of the file.
+   * @throws IOException If the file cannot be read.
+   */
+  public Entry get(File file) throws IOException {
+    String key = file.getAbsolutePath();
+    synchronized (this) {
+      Entry entry = mEntries.get(key);
+      if (null != entry && entry.isUpToDate(file)) {
+        return entry;
+      }
+    }
+
+    // Read outside the lock so that threads can read different files concurrently.
+    Entry entry = new Entry(file);
+    synchronized (this) {
+      Entry previous = mEntries.put(key, entry);
+      if (null != previous) {
+        mChars -= previous.getContent().length();
+      }
+      mChars += entry.getContent().length();
+      evict();
+    }
+    return entry;
+  }
+
+  /** Evicts the least recently used entries until the cache is within its size limit. */
+  private synchronized void evict() {
+    Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+    while (mChars > mMaxChars && iterator.hasNext()) {
+      mChars -= iterator.next().getValue().getContent().length();
+      iterator.remove();
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.template.soy.base.SoySyntaxException;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.shared.model.fileset.FileSet;
+
+/**
+ * A maven goal that compiles soy templates (Google Closure Templates) into javascript files,
+ * then keeps running and recompiles them whenever they change.
+ *
+ * <p>It takes the same configuration as the compile goal. The input files and the call graph
+ * of the templates are kept in memory between compiles, so each change only looks at the
+ * changed paths, and only recompiles the changed soy files and the files that call templates
+ * defined in them. The input directories are only scanned again when a directory changes or
+ * the file system drops events.</p>
+ *
+ * @goal watch
+ */
+public class WatchMojo extends CompileMojo {
+  /**
+   * How long to wait, in milliseconds, for further changes after a change is seen before
+   * recompiling, so that saving several files at once only triggers one compile.
+   *
+   * @parameter property="quietPeriod" expression="${soy.watch.quietPeriod}" default-value="50"
+   */
+  private long mQuietPeriod = 50;
+
+  /** The state recorded by the last successful compile, or null. */
+  private BuildState mLastState;
+
+  /** Constructs a WatchMojo, which keeps the sources it reads in memory by default. */
+  public WatchMojo() {
+    setSourceCacheSize(64);
+  }
+
+  /**
+   * Sets how long to wait for further changes before recompiling.
+   *
+   * @param quietPeriod A number of milliseconds.
+   */
+  public void setQuietPeriod(long quietPeriod) {
+    mQuietPeriod = quietPeriod;
+  }
+
+  /**
+   * Watches a directory and all of its subdirectories for changes.
+   *
+   * @param watchService The watch service to register with.
+   * @param directory The root directory to watch.
+   * @throws IOException If a directory cannot be registered.
+   */
+  private static void register(final WatchService watchService, Path directory)
+      throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+          throws IOException {
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Consumes the pending events of a watch key, registering any new directories.
+   *
+   * @param watchService The watch service the key belongs to.
+   * @param key The signalled key.
+   * @param changed Collects the absolute paths that changed.
+   * @return Whether events were dropped, so that the changed paths are incomplete.
+   * @throws IOException If a new directory cannot be registered.
+   */
+  private static boolean drain(WatchService watchService, WatchKey key, Set<Path> changed)
+      throws IOException {
+    Path directory = (Path) key.watchable();
+    boolean overflowed = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (StandardWatchEventKinds.OVERFLOW == event.kind()) {
+        overflowed = true;
+        continue;
+      }
+      Path path = directory.resolve((Path) event.context());
+      changed.add(path.toAbsolutePath());
+      if (StandardWatchEventKinds.ENTRY_CREATE == event.kind() && Files.isDirectory(path)) {
+        register(watchService, path);
+      }
+    }
+    key.reset();
+    return overflowed;
+  }
+
+  /**
+   * Recompiles the stale soy templates, logging rather than throwing any failure, so that a
+   * broken change never stops the goal.
+   *
+   * @param changed The absolute paths that changed since the last successful compile, or null
+   *     to scan the input directories.
+   * @return Whether the compile succeeded.
+   */
+  private boolean rebuild(Collection<Path> changed) {
+    try {
+      mLastState = build(mLastState, true, changed);
+      return true;
+    } catch (SoySyntaxException e) {
+      getLog().error(e.getMessage());
+    } catch (MojoExecutionException e) {
+      getLog().error(e.getMessage());
+    } catch (RuntimeException e) {
+      getLog().error("Unable to compile soy templates.", e);
+    }
+    // Keep the previous state and changes, so the broken files are retried after the next one.
+    return false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void execute() throws MojoExecutionException {
+    mLastState = isIncremental() ? BuildState.load(getStateFile()) : null;
+    rebuild(null);
+
+    List<File> directories = new ArrayList<File>();
+    for (FileSet fileSet : getAllInputFileSets()) {
+      directories.add(new File(fileSet.getDirectory()));
+    }
+    WatchService watchService = null;
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+      for (File directory : directories) {
+        register(watchService, directory.toPath());
+      }
+      getLog().info("Watching " + directories + " for changes...");
+      Set<Path> changed = new HashSet<Path>();
+      boolean overflowed = false;
+      while (true) {
+        overflowed |= drain(watchService, watchService.take(), changed);
+        WatchKey key = watchService.poll(mQuietPeriod, TimeUnit.MILLISECONDS);
+        while (null != key) {
+          overflowed |= drain(watchService, key, changed);
+          key = watchService.poll(mQuietPeriod, TimeUnit.MILLISECONDS);
+        }
+        if (rebuild(overflowed ? null : changed)) {
+          changed.clear();
+          overflowed = false;
+        }
+      }
+    } catch (IOException e) {
+      throw new MojoExecutionException("Unable to watch " + directories, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      getLog().info("Stopped watching " + directories);
+    } finally {
+      if (null != watchService) {
+        try {
+          watchService.close();
+        } catch (IOException e) {
+          getLog().warn("Unable to stop watching " + directories + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBuildState {
+  private File mDirectory;
+
+  @Before
+  public void createDirectory() throws IOException {
+    mDirectory = Files.createTempDirectory("soy-state-test").toFile();
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    FileUtils.deleteDirectory(mDirectory);
+  }
+
+  private BuildState newState() throws IOException {
+    File output = new File(mDirectory, "a.soy.js");
+    FileUtils.writeStringToFile(output, "output", "UTF-8");
+    BuildState state = new BuildState("options");
+    SoyFileInfo info = SoyFileInfo.scan("{namespace a}\n"
+        + "{template .main}{call b.helper /}{delcall widget /}{/template}\n"
+        + "{deltemplate gadget}gadget{/deltemplate}\n");
+    state.put("a.soy", new BuildState.Entry(10L, 1000L, "hash", info)
+        .withOutput("outputHash", output));
+    state.put("sub/b.soy", new BuildState.Entry(20L, 2000L, "other",
+        SoyFileInfo.scan("{namespace b}\n{template .helper}helper{/template}\n")));
+    return state;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    File file = new File(mDirectory, "state.bin");
+    newState().save(file);
+    BuildState state = BuildState.load(file);
+    assertNotNull(state);
+    assertEquals("options", state.getOptionsFingerprint());
+    assertEquals(Arrays.asList("a.soy", "sub/b.soy"), new ArrayList<String>(state.getPaths()));
+
+    BuildState.Entry entry = state.get("a.soy");
+    assertEquals("hash", entry.getHash());
+    assertEquals("outputHash", entry.getOutputHash());
+    assertTrue(entry.isUpToDate(new InputScanner.InputFile(new File("a.soy"), 10L, 1000L)));
+    assertFalse(entry.isUpToDate(new InputScanner.InputFile(new File("a.soy"), 11L, 1000L)));
+    assertFalse(entry.isUpToDate(new InputScanner.InputFile(new File("a.soy"), 10L, 1001L)));
+    assertTrue(entry.isOutputUpToDate(new File(mDirectory, "a.soy.js")));
+    assertFalse(entry.isOutputUpToDate(new File(mDirectory, "missing.js")));
+
+    SoyFileInfo info = entry.getInfo();
+    assertEquals("a", info.getNamespace());
+    assertEquals(Collections.singleton("a.main"), info.getTemplates());
+    assertEquals(Collections.singleton("gadget"), info.getDelTemplates());
+    assertEquals(Collections.singleton("b.helper"), info.getCalls());
+    assertEquals(Collections.singleton("widget"), info.getDelCalls());
+
+    assertEquals("", state.get("sub/b.soy").getOutputHash());
+    assertEquals(Collections.singleton("b.helper"),
+        state.getFileInfos().get("sub/b.soy").getTemplates());
+  }
+
+  @Test
+  public void testSaveReplacesAnExistingFile() throws IOException {
+    File file = new File(mDirectory, "state.bin");
+    newState().save(file);
+    new BuildState("other options").save(file);
+    BuildState state = BuildState.load(file);
+    assertEquals("other options", state.getOptionsFingerprint());
+    assertTrue(state.getPaths().isEmpty());
+    assertFalse(new File(mDirectory, "state.bin.tmp").exists());
+  }
+
+  @Test
+  public void testLoadMissingFile() {
+    assertNull(BuildState.load(new File(mDirectory, "missing.bin")));
+  }
+
+  @Test
+  public void testLoadRejectsOtherFormats() throws IOException {
+    File file = new File(mDirectory, "state.bin");
+    newState().save(file);
+    byte[] bytes = FileUtils.readFileToByteArray(file);
+    ByteBuffer header = ByteBuffer.wrap(bytes);
+    int magic = header.getInt();
+    int version = header.getInt();
+
+    header.putInt(0, magic + 1);
+    FileUtils.writeByteArrayToFile(file, bytes);
+    assertNull(BuildState.load(file));
+
+    header.putInt(0, magic);
+    header.putInt(4, version + 1);
+    FileUtils.writeByteArrayToFile(file, bytes);
+    assertNull(BuildState.load(file));
+
+    header.putInt(4, version);
+    FileUtils.writeByteArrayToFile(file, bytes);
+    assertNotNull(BuildState.load(file));
+  }
+
+  @Test
+  public void testLoadRejectsTruncatedFiles() throws IOException {
+    File file = new File(mDirectory, "state.bin");
+    newState().save(file);
+    byte[] bytes = FileUtils.readFileToByteArray(file);
+    for (int length : new int[] {0, 6, bytes.length / 2, bytes.length - 1}) {
+      FileUtils.writeByteArrayToFile(file, Arrays.copyOf(bytes, length));
+      assertNull("Truncated to " + length + " bytes", BuildState.load(file));
+    }
+    FileUtils.writeByteArrayToFile(file, bytes);
+    assertNotNull(BuildState.load(file));
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestCompileDaemon {
+  private static final String HELLO = "{namespace test}\n"
+      + "\n"
+      + "/**\n"
+      + " * Greets someone.\n"
+      + " * @param name The name to greet.\n"
+      + " */\n"
+      + "{template .hello}\n"
+      + "  Hello {$name}, {GREETING}!\n"
+      + "{/template}\n";
+
+  private static File tempDir;
+
+  private static CompileDaemonClient client;
+
+  @BeforeClass
+  public static void startClient() throws IOException {
+    tempDir = Files.createTempDirectory("soy-daemon-test").toFile();
+    // Like the plugin realm, leave out maven itself, which maven provides to plugins.
+    String classpath = System.getProperty("surefire.test.class.path",
+        System.getProperty("java.class.path"));
+    List<File> entries = new ArrayList<File>();
+    for (String entry : classpath.split(File.pathSeparator)) {
+      if (!new File(entry).getName().startsWith("maven-")) {
+        entries.add(new File(entry));
+      }
+    }
+    client = new CompileDaemonClient(new File(tempDir, "daemons"), 10000L, entries);
+  }
+
+  @AfterClass
+  public static void deleteTempDir() throws IOException {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  private static CompileRequest newRequest(List<String> pluginModules, String content) {
+    return new CompileRequest(false, false, Collections.singletonMap("GREETING", "welcome"),
+        pluginModules, Arrays.asList("test/hello.soy"), Arrays.asList(content));
+  }
+
+  @Test
+  public void testCompilesWithoutMaven() throws IOException {
+    List<String> srcs = client.compile(newRequest(Collections.<String>emptyList(), HELLO));
+    assertEquals(1, srcs.size());
+    assertTrue(srcs.get(0), srcs.get(0).contains("test.hello = function"));
+    assertTrue(srcs.get(0), srcs.get(0).contains("welcome"));
+
+    File directory = new File(tempDir, "daemons");
+    if (directory.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      assertEquals("rwx------",
+          PosixFilePermissions.toString(Files.getPosixFilePermissions(directory.toPath())));
+    }
+  }
+
+  @Test
+  public void testReportsSoyErrors() throws IOException {
+    assertNull(client.compile(newRequest(Collections.<String>emptyList(),
+        HELLO.replace("{/template}", ""))));
+  }
+
+  @Test
+  public void testReportsFailures() {
+    try {
+      client.compile(newRequest(Arrays.asList("com.example.MissingModule"), HELLO));
+      fail("Expected the daemon to fail.");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("com.example.MissingModule"));
+    }
+  }
+}
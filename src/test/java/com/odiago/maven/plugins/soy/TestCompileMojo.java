@@ -0,0 +1,273 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.template.soy.base.SoySyntaxException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.shared.model.fileset.FileSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+public class TestCompileMojo {
+  private File mDirectory;
+
+  @Before
+  public void createDirectory() throws IOException {
+    mDirectory = Files.createTempDirectory("soy-compile-test").toFile();
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    FileUtils.deleteDirectory(mDirectory);
+  }
+
+  private static SortedSet<String> set(String... elements) {
+    return new TreeSet<String>(Arrays.asList(elements));
+  }
+
+  /** A build context that records the files it is told about, and the threads telling it. */
+  private static final class RecordingBuildContext extends DefaultBuildContext {
+    private final SortedSet<String> mRefreshed = new TreeSet<String>();
+
+    private final Set<Thread> mThreads = new HashSet<Thread>();
+
+    @Override
+    public void refresh(File file) {
+      mRefreshed.add(file.getName());
+      mThreads.add(Thread.currentThread());
+    }
+  }
+
+  /** A log that records its info messages. */
+  private static final class RecordingLog extends SystemStreamLog {
+    private final List<String> mMessages = new ArrayList<String>();
+
+    @Override
+    public synchronized void info(CharSequence message) {
+      mMessages.add(message.toString());
+      super.info(message);
+    }
+  }
+
+  /** Runs git in the test directory, with an identity so that it can commit. */
+  private void git(String... args) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<String>(Arrays.asList("git", "-c", "user.name=test",
+        "-c", "user.email=test@example.com", "-c", "commit.gpgsign=false"));
+    command.addAll(Arrays.asList(args));
+    Process process = new ProcessBuilder(command).directory(mDirectory)
+        .redirectErrorStream(true).start();
+    String output = IOUtils.toString(process.getInputStream(), "UTF-8");
+    assertEquals(output, 0, process.waitFor());
+  }
+
+  private void write(String filename, String content) throws IOException {
+    FileUtils.writeStringToFile(new File(mDirectory, filename), content, "UTF-8");
+  }
+
+  /** Builds a soy file with a single template. */
+  private static String soy(String namespace, String template, String body) {
+    return "{namespace " + namespace + "}\n\n/** Test. */\n{template ." + template + "}\n"
+        + body + "\n{/template}\n";
+  }
+
+  private CompileMojo newMojo(String sourceDirectory) {
+    FileSet fileSet = new FileSet();
+    fileSet.setDirectory(new File(mDirectory, sourceDirectory).getPath());
+    fileSet.addInclude("**/*.soy");
+    CompileMojo mojo = new CompileMojo();
+    mojo.setInputFiles(fileSet);
+    mojo.setOutputDirectory(new File(mDirectory, "out"));
+    mojo.setWorkDirectory(new File(mDirectory, "work"));
+    return mojo;
+  }
+
+  /** Lists the compiled files in the output directory, relative to it. */
+  private SortedSet<String> getOutputs() {
+    SortedSet<String> outputs = new TreeSet<String>();
+    File outputDirectory = new File(mDirectory, "out");
+    if (outputDirectory.isDirectory()) {
+      for (File file : FileUtils.listFiles(outputDirectory, new String[] {"js"}, true)) {
+        outputs.add(outputDirectory.toURI().relativize(file.toURI()).getPath());
+      }
+    }
+    return outputs;
+  }
+
+  @Test
+  public void testAffectedSinceCompilesChangedFilesAndTheirCallers()
+      throws IOException, InterruptedException, MojoExecutionException {
+    write("soy/a.soy", soy("a", "main", "{call b.helper /}"));
+    write("soy/b.soy", soy("b", "helper", "b"));
+    write("soy/c.soy", soy("c", "main", "c"));
+    write("soy/d.soy", soy("d", "main", "{call c.main /}"));
+    git("init", "-q");
+    git("add", "soy");
+    git("commit", "-q", "-m", "base");
+    git("branch", "base");
+
+    write("soy/b.soy", soy("b", "helper", "changed"));
+    // An untracked file is a change too.
+    write("soy/e.soy", soy("e", "main", "e"));
+
+    CompileMojo mojo = newMojo("soy");
+    mojo.setAffectedSince("base");
+    mojo.execute();
+    assertEquals(set("a.soy.js", "b.soy.js", "e.soy.js"), getOutputs());
+  }
+
+  @Test
+  public void testAffectedSinceWithoutInputs()
+      throws IOException, InterruptedException, MojoExecutionException {
+    write("other/a.soy", soy("a", "main", "a"));
+    git("init", "-q");
+    git("add", "other");
+    git("commit", "-q", "-m", "base");
+    write("other/a.soy", soy("a", "main", "changed"));
+    FileUtils.forceMkdir(new File(mDirectory, "soy"));
+
+    CompileMojo mojo = newMojo("soy");
+    mojo.setAffectedSince("HEAD");
+    mojo.execute();
+    assertEquals(set(), getOutputs());
+  }
+
+  @Test
+  public void testRefreshesOutputsOnTheBuildThread() throws IOException, MojoExecutionException {
+    for (int i = 0; i < 20; i++) {
+      write("soy/f" + i + ".soy", soy("f" + i, "main", "f" + i));
+    }
+    RecordingBuildContext buildContext = new RecordingBuildContext();
+    CompileMojo mojo = newMojo("soy");
+    mojo.setBuildContext(buildContext);
+    mojo.setIoThreads(4);
+    mojo.execute();
+    assertEquals(getOutputs(), buildContext.mRefreshed);
+    assertEquals(20, buildContext.mRefreshed.size());
+    assertEquals(1, buildContext.mThreads.size());
+    assertSame(Thread.currentThread(), buildContext.mThreads.iterator().next());
+  }
+
+  @Test
+  public void testIncrementalBuildReportsRedefinitionsOfUnchangedTemplates()
+      throws IOException, MojoExecutionException {
+    write("soy/a.soy", soy("a", "main", "a"));
+    write("soy/b.soy", soy("b", "main", "b"));
+    CompileMojo mojo = newMojo("soy");
+    mojo.setIncremental(true);
+    mojo.execute();
+
+    write("soy/c.soy", soy("a", "main", "c"));
+    mojo = newMojo("soy");
+    mojo.setIncremental(true);
+    try {
+      mojo.execute();
+      fail("Expected the redefined template to be reported.");
+    } catch (SoySyntaxException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("a.main"));
+    }
+  }
+
+  /** Writes clusters of soy files that call each other, and call a shared deltemplate. */
+  private void writeClusters(int clusters) throws IOException {
+    write("soy/widget.soy", "{namespace widget}\n\n/** Widget. */\n{deltemplate widget}\n"
+        + "widget \u00e9\n{/deltemplate}\n");
+    for (int i = 0; i < clusters; i++) {
+      write("soy/c" + i + "/a.soy", "{namespace c" + i + ".a}\n\n"
+          + "/**\n * Calls the helper.\n * @param name The name.\n */\n{template .main}\n"
+          + "  {call c" + i + ".b.helper}{param name: $name /}{/call}\n"
+          + (0 == i % 3 ? "  {delcall widget /}\n" : "")
+          + "{/template}\n");
+      write("soy/c" + i + "/b.soy", "{namespace c" + i + ".b}\n\n"
+          + "/**\n * Greets.\n * @param name The name.\n */\n{template .helper}\n"
+          + "  {if $name}Hello {$name} \u20ac" + i + "{else}\uD83D\uDE00{/if}\n"
+          + "{/template}\n");
+    }
+  }
+
+  /** Reads every output, keyed by path relative to the output directory. */
+  private SortedMap<String, String> readOutputs() throws IOException {
+    SortedMap<String, String> outputs = new TreeMap<String, String>();
+    for (String output : getOutputs()) {
+      outputs.put(output, FileUtils.readFileToString(new File(mDirectory, "out/" + output),
+          "UTF-8"));
+    }
+    return outputs;
+  }
+
+  @Test
+  public void testPartitionedCompileMatchesASingleCompile()
+      throws IOException, MojoExecutionException {
+    writeClusters(12);
+    CompileMojo mojo = newMojo("soy");
+    mojo.setThreads(1);
+    mojo.execute();
+    SortedMap<String, String> single = readOutputs();
+    assertEquals(25, single.size());
+
+    FileUtils.deleteDirectory(new File(mDirectory, "out"));
+    RecordingLog log = new RecordingLog();
+    mojo = newMojo("soy");
+    mojo.setLog(log);
+    mojo.setThreads(4);
+    mojo.setIoThreads(3);
+    mojo.execute();
+    assertEquals(single, readOutputs());
+    boolean partitioned = false;
+    for (String message : log.mMessages) {
+      partitioned |= message.contains("partitions on 4 threads");
+    }
+    assertTrue(log.mMessages.toString(), partitioned);
+  }
+
+  @Test(timeout = 60000)
+  public void testPartitionedCompileReportsErrors() throws IOException, MojoExecutionException {
+    writeClusters(12);
+    write("soy/c7/b.soy", soy("c7.b", "helper", "{$undeclared}"));
+    CompileMojo mojo = newMojo("soy");
+    mojo.setThreads(4);
+    try {
+      mojo.execute();
+      fail("Expected the undeclared parameter to be reported.");
+    } catch (SoySyntaxException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("undeclared"));
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class TestCompilePartition {
+  private final Map<String, SoyFileInfo> mFiles = new HashMap<String, SoyFileInfo>();
+
+  private final Map<String, InputScanner.InputFile> mInputs =
+      new HashMap<String, InputScanner.InputFile>();
+
+  private static SortedSet<String> set(String... elements) {
+    return new TreeSet<String>(Arrays.asList(elements));
+  }
+
+  private void add(String filename, long length, String source) {
+    mFiles.put(filename, SoyFileInfo.scan(source));
+    mInputs.put(filename, new InputScanner.InputFile(new File(filename), length, 0L));
+  }
+
+  /**
+   * Adds a cluster in which a.soy calls b.soy, and two clusters of one file each, c.soy and
+   * d.soy.
+   */
+  private void addClusters() {
+    add("a.soy", 100, "{namespace a}\n{template .main}{call b.helper /}{/template}\n");
+    add("b.soy", 50, "{namespace b}\n{template .helper}helper{/template}\n");
+    add("c.soy", 60, "{namespace c}\n{template .main}c{/template}\n");
+    add("d.soy", 40, "{namespace d}\n{template .main}d{/template}\n");
+  }
+
+  @Test
+  public void testKeepsClustersTogether() {
+    addClusters();
+    List<CompilePartition> partitions = CompilePartition.plan(new DependencyGraph(mFiles),
+        mFiles.keySet(), mInputs, 3, Long.MAX_VALUE);
+    assertEquals(3, partitions.size());
+    assertEquals(set("a.soy", "b.soy"), partitions.get(0).getTargets());
+    assertEquals(150, partitions.get(0).getSourceBytes());
+    assertEquals(set("c.soy"), partitions.get(1).getTargets());
+    assertEquals(set("d.soy"), partitions.get(2).getTargets());
+  }
+
+  @Test
+  public void testPacksSmallClusters() {
+    addClusters();
+    List<CompilePartition> partitions = CompilePartition.plan(new DependencyGraph(mFiles),
+        mFiles.keySet(), mInputs, 1, 150);
+    assertEquals(2, partitions.size());
+    assertEquals(set("a.soy", "b.soy"), partitions.get(0).getTargets());
+    assertEquals(set("c.soy", "d.soy"), partitions.get(1).getTargets());
+    assertEquals(100, partitions.get(1).getSourceBytes());
+  }
+
+  @Test
+  public void testSourcesIncludeCallees() {
+    addClusters();
+    List<CompilePartition> partitions = CompilePartition.plan(new DependencyGraph(mFiles),
+        Arrays.asList("a.soy"), mInputs, 4, Long.MAX_VALUE);
+    assertEquals(1, partitions.size());
+    assertEquals(set("a.soy"), partitions.get(0).getTargets());
+    assertEquals(set("a.soy", "b.soy"), partitions.get(0).getSources());
+  }
+
+  @Test
+  public void testSourcesIncludeRedefinitions() {
+    addClusters();
+    // Redefines a template of the unchanged c.soy, which the compiler must see to report it.
+    add("e.soy", 30, "{namespace c}\n{template .main}e{/template}\n");
+    List<CompilePartition> partitions = CompilePartition.plan(new DependencyGraph(mFiles),
+        Arrays.asList("e.soy"), mInputs, 4, Long.MAX_VALUE);
+    assertEquals(1, partitions.size());
+    assertEquals(set("e.soy"), partitions.get(0).getTargets());
+    assertEquals(set("c.soy", "e.soy"), partitions.get(0).getSources());
+    assertEquals(90, partitions.get(0).getSourceBytes());
+  }
+}
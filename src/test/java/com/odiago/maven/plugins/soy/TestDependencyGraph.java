@@ -0,0 +1,148 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class TestDependencyGraph {
+  private static SortedSet<String> set(String... elements) {
+    return new TreeSet<String>(Arrays.asList(elements));
+  }
+
+  /**
+   * Builds a graph in which a.soy calls b.soy, b.soy calls c.soy and a deltemplate defined in
+   * d.soy, and e.soy calls nothing.
+   */
+  private static DependencyGraph newGraph() {
+    Map<String, SoyFileInfo> files = new HashMap<String, SoyFileInfo>();
+    files.put("a.soy", SoyFileInfo.scan("{namespace a}\n"
+        + "{template .main}{call b.helper /}{/template}\n"));
+    files.put("b.soy", SoyFileInfo.scan("{namespace b}\n"
+        + "{template .helper}{call c.leaf /}{delcall widget /}{/template}\n"));
+    files.put("c.soy", SoyFileInfo.scan("{namespace c}\n"
+        + "{template .leaf}leaf{/template}\n"));
+    files.put("d.soy", SoyFileInfo.scan("{namespace d}\n"
+        + "{deltemplate widget}widget{/deltemplate}\n"));
+    files.put("e.soy", SoyFileInfo.scan("{namespace e}\n"
+        + "{template .alone}alone{/template}\n"));
+    return new DependencyGraph(files);
+  }
+
+  @Test
+  public void testCallees() {
+    DependencyGraph graph = newGraph();
+    assertEquals(set("b.soy"), graph.getCallees("a.soy"));
+    assertEquals(set("c.soy", "d.soy"), graph.getCallees("b.soy"));
+    assertEquals(set(), graph.getCallees("c.soy"));
+    assertEquals(set(), graph.getCallees("missing.soy"));
+  }
+
+  @Test
+  public void testCallers() {
+    DependencyGraph graph = newGraph();
+    assertEquals(set("b.soy"),
+        graph.getCallers(set("c.leaf"), Collections.<String>emptySet()));
+    assertEquals(set("b.soy"),
+        graph.getCallers(Collections.<String>emptySet(), set("widget")));
+    assertEquals(set("a.soy", "b.soy"),
+        graph.getCallers(set("b.helper", "c.leaf"), Collections.<String>emptySet()));
+    assertTrue(graph.getCallers(set("e.alone"), set("other")).isEmpty());
+  }
+
+  @Test
+  public void testTransitiveClosure() {
+    DependencyGraph graph = newGraph();
+    assertEquals(set("a.soy", "b.soy", "c.soy", "d.soy"),
+        graph.getTransitiveClosure(Arrays.asList("a.soy")));
+    assertEquals(set("c.soy", "e.soy"),
+        graph.getTransitiveClosure(Arrays.asList("c.soy", "e.soy")));
+    assertEquals(set(), graph.getTransitiveClosure(Collections.<String>emptyList()));
+  }
+
+  @Test
+  public void testTransitiveClosureIncludesRedefinitions() {
+    Map<String, SoyFileInfo> files = new HashMap<String, SoyFileInfo>();
+    files.put("x.soy", SoyFileInfo.scan("{namespace x}\n"
+        + "{template .one}one{/template}\n"));
+    // Redefines x.one, and calls a template of its own cluster.
+    files.put("y.soy", SoyFileInfo.scan("{namespace x}\n"
+        + "{template .one}{call z.two /}{/template}\n"));
+    files.put("z.soy", SoyFileInfo.scan("{namespace z}\n"
+        + "{template .two}two{/template}\n"));
+    files.put("w.soy", SoyFileInfo.scan("{namespace w}\n"
+        + "{deltemplate widget}w{/deltemplate}\n"));
+    files.put("v.soy", SoyFileInfo.scan("{namespace v}\n"
+        + "{deltemplate widget}v{/deltemplate}\n"));
+    DependencyGraph graph = new DependencyGraph(files);
+    assertEquals(set("y.soy"), graph.getRedefinitions("x.soy"));
+    assertEquals(set("v.soy"), graph.getRedefinitions("w.soy"));
+    assertEquals(set(), graph.getRedefinitions("z.soy"));
+    assertEquals(set("x.soy", "y.soy", "z.soy"),
+        graph.getTransitiveClosure(Arrays.asList("x.soy")));
+    assertEquals(set("v.soy", "w.soy"), graph.getTransitiveClosure(Arrays.asList("v.soy")));
+  }
+
+  @Test
+  public void testTransitiveClosureOfCycle() {
+    Map<String, SoyFileInfo> files = new HashMap<String, SoyFileInfo>();
+    files.put("x.soy", SoyFileInfo.scan("{namespace x}\n"
+        + "{template .one}{call y.two /}{/template}\n"));
+    files.put("y.soy", SoyFileInfo.scan("{namespace y}\n"
+        + "{template .two}{call x.one /}{/template}\n"));
+    assertEquals(set("x.soy", "y.soy"),
+        new DependencyGraph(files).getTransitiveClosure(Arrays.asList("y.soy")));
+  }
+
+  @Test
+  public void testClusters() {
+    Map<String, SoyFileInfo> files = new HashMap<String, SoyFileInfo>();
+    files.put("a.soy", SoyFileInfo.scan("{namespace a}\n"
+        + "{template .main}{call b.helper /}{/template}\n"));
+    files.put("b.soy", SoyFileInfo.scan("{namespace b}\n"
+        + "{template .helper}helper{/template}\n"));
+    files.put("c.soy", SoyFileInfo.scan("{namespace c}\n"
+        + "{template .main}{call b.helper /}{/template}\n"));
+    files.put("d.soy", SoyFileInfo.scan("{namespace d}\n"
+        + "{deltemplate widget}d{/deltemplate}\n"));
+    files.put("e.soy", SoyFileInfo.scan("{namespace e}\n"
+        + "{deltemplate widget}e{/deltemplate}\n"));
+    files.put("f.soy", SoyFileInfo.scan("{namespace f}\n"
+        + "{template .alone}alone{/template}\n"));
+    // A duplicate definition stays with the original, so the compiler still reports it.
+    files.put("g.soy", SoyFileInfo.scan("{namespace f}\n"
+        + "{template .alone}again{/template}\n"));
+
+    List<SortedSet<String>> clusters = new DependencyGraph(files).getClusters();
+    assertEquals(3, clusters.size());
+    assertEquals(new HashSet<SortedSet<String>>(Arrays.asList(set("a.soy", "b.soy", "c.soy"),
+        set("d.soy", "e.soy"), set("f.soy", "g.soy"))),
+        new HashSet<SortedSet<String>>(clusters));
+  }
+}
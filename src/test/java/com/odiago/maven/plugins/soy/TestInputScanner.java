@@ -0,0 +1,193 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.shared.model.fileset.FileSet;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class TestInputScanner {
+  /** Determines whether a pattern matches a path written with forward slashes. */
+  private static boolean matches(String pattern, String path) {
+    return Pattern.matches(InputScanner.toRegex(Arrays.asList(pattern)),
+        path.replace('/', File.separatorChar));
+  }
+
+  private static FileSet newFileSet(File directory, String... includes) {
+    FileSet fileSet = new FileSet();
+    fileSet.setDirectory(directory.getPath());
+    for (String include : includes) {
+      fileSet.addInclude(include);
+    }
+    return fileSet;
+  }
+
+  private static String path(String path) {
+    return path.replace('/', File.separatorChar);
+  }
+
+  @Test
+  public void testSingleStar() {
+    assertTrue(matches("*.soy", "a.soy"));
+    assertTrue(matches("*.soy", ".soy"));
+    assertFalse(matches("*.soy", "dir/a.soy"));
+    assertFalse(matches("*.soy", "a.soy.bak"));
+    assertTrue(matches("dir/*/a.soy", "dir/sub/a.soy"));
+    assertFalse(matches("dir/*/a.soy", "dir/a.soy"));
+  }
+
+  @Test
+  public void testQuestionMark() {
+    assertTrue(matches("a?.soy", "ab.soy"));
+    assertFalse(matches("a?.soy", "a.soy"));
+    assertFalse(matches("a?.soy", "abc.soy"));
+    assertFalse(matches("a?b.soy", "a/b.soy"));
+  }
+
+  @Test
+  public void testDoubleStar() {
+    assertTrue(matches("**/*.soy", "a.soy"));
+    assertTrue(matches("**/*.soy", "dir/sub/a.soy"));
+    assertTrue(matches("dir/**/a.soy", "dir/a.soy"));
+    assertTrue(matches("dir/**/a.soy", "dir/x/y/a.soy"));
+    assertFalse(matches("dir/**/a.soy", "other/a.soy"));
+    assertFalse(matches("dir/**/a.soy", "dirx/a.soy"));
+    assertTrue(matches("dir/**", "dir"));
+    assertTrue(matches("dir/**", "dir/x/a.soy"));
+    assertFalse(matches("dir/**", "dirx/a.soy"));
+    assertTrue(matches("**", "dir/a.soy"));
+  }
+
+  @Test
+  public void testQuotesLiterals() {
+    assertTrue(matches("a+b.soy", "a+b.soy"));
+    assertFalse(matches("a.soy", "axsoy"));
+    assertTrue(matches("[x].soy", "[x].soy"));
+  }
+
+  @Test
+  public void testAnyOfSeveralPatterns() {
+    String regex = InputScanner.toRegex(Arrays.asList("*.soy", "lib/**"));
+    assertTrue(Pattern.matches(regex, "a.soy"));
+    assertTrue(Pattern.matches(regex, path("lib/x.js")));
+    assertFalse(Pattern.matches(regex, path("src/a.soy")));
+  }
+
+  @Test
+  public void testScan() throws IOException, MojoExecutionException {
+    File directory = Files.createTempDirectory("soy-scan-test").toFile();
+    try {
+      for (String file : Arrays.asList("a.soy", "b.txt", "sub/c.soy", "skip/d.soy",
+          "CVS/e.soy", "sub/.svn/f.soy")) {
+        FileUtils.writeStringToFile(new File(directory, file), "", "UTF-8");
+      }
+      FileSet fileSet = newFileSet(directory, "**/*.soy");
+      fileSet.addExclude("skip/");
+      fileSet.setUseDefaultExcludes(true);
+      SortedMap<String, InputScanner.InputFile> inputs = InputScanner.scan(
+          Arrays.asList(fileSet), 2, new CompileMetrics(0));
+      assertEquals(new TreeSet<String>(Arrays.asList("a.soy", path("sub/c.soy"))),
+          inputs.keySet());
+      assertEquals(new File(directory, "a.soy"), inputs.get("a.soy").getFile());
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  public void testScanSkipsUnreadableDirectories() throws IOException, MojoExecutionException {
+    File directory = Files.createTempDirectory("soy-scan-test").toFile();
+    File locked = new File(directory, "locked");
+    try {
+      FileUtils.writeStringToFile(new File(directory, "a.soy"), "", "UTF-8");
+      FileUtils.writeStringToFile(new File(locked, "b.soy"), "", "UTF-8");
+      Files.setPosixFilePermissions(locked.toPath(), PosixFilePermissions.fromString("---------"));
+      // Permissions do not keep some users, such as root, out.
+      Assume.assumeTrue(null == locked.list());
+
+      SortedMap<String, InputScanner.InputFile> inputs = InputScanner.scan(
+          Arrays.asList(newFileSet(directory, "**/*.soy")), 2, new CompileMetrics(0));
+      assertEquals(new TreeSet<String>(Arrays.asList("a.soy")), inputs.keySet());
+    } finally {
+      Files.setPosixFilePermissions(locked.toPath(), PosixFilePermissions.fromString("rwx------"));
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  public void testScanRejectsTheSameFileFromTwoDirectories() throws IOException {
+    File directory = Files.createTempDirectory("soy-scan-test").toFile();
+    try {
+      FileUtils.writeStringToFile(new File(directory, "one/a.soy"), "", "UTF-8");
+      FileUtils.writeStringToFile(new File(directory, "two/a.soy"), "", "UTF-8");
+      List<FileSet> fileSets = Arrays.asList(newFileSet(new File(directory, "one")),
+          newFileSet(new File(directory, "two")));
+      try {
+        InputScanner.scan(fileSets, 1, new CompileMetrics(0));
+        fail("Expected the duplicate to be reported.");
+      } catch (MojoExecutionException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("a.soy"));
+      }
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  public void testDelta() throws IOException {
+    File directory = Files.createTempDirectory("soy-scan-test").toFile();
+    try {
+      FileUtils.writeStringToFile(new File(directory, "sub/a.soy"), "", "UTF-8");
+      FileUtils.writeStringToFile(new File(directory, "b.txt"), "", "UTF-8");
+      List<FileSet> fileSets = Arrays.asList(newFileSet(directory, "**/*.soy"));
+      Path root = directory.toPath().toAbsolutePath();
+
+      SortedMap<String, File> delta = InputScanner.getDelta(fileSets, Arrays.asList(
+          root.resolve("sub/a.soy"), root.resolve("b.txt"), root.resolve("gone.soy"),
+          root.getParent().resolve("elsewhere.soy")));
+      assertEquals(new TreeSet<String>(Arrays.asList(path("sub/a.soy"), "b.txt", "gone.soy")),
+          delta.keySet());
+      assertEquals(new File(directory, path("sub/a.soy")), delta.get(path("sub/a.soy")));
+      assertNull(delta.get("b.txt"));
+      assertNull(delta.get("gone.soy"));
+
+      assertNull(InputScanner.getDelta(fileSets, Arrays.asList(root.resolve("sub"))));
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class TestMetricsHistory {
+  /** Creates a build that spent all of its time compiling. */
+  private static MetricsHistory.Record build(long wallMillis, long inputFiles,
+      long compiledFiles, long outputBytes) {
+    return new MetricsHistory.Record("2026-10-18T10:30:16Z", wallMillis, inputFiles,
+        compiledFiles, outputBytes, new long[] {0L, 0L, 0L, wallMillis, 0L});
+  }
+
+  private static List<MetricsHistory.Record> builds(MetricsHistory.Record... records) {
+    return Arrays.asList(records);
+  }
+
+  @Test
+  public void testParse() {
+    MetricsHistory.Record record =
+        MetricsHistory.Record.parse("2026-10-18T10:30:16Z\t4249\t400\t400\t336000\t1\t2\t3\t4\t5");
+    assertEquals("2026-10-18T10:30:16Z\t4249\t400\t400\t336000\t1\t2\t3\t4\t5", record.toLine());
+
+    MetricsHistory.Record built = build(1000, 10, 5, 2000);
+    assertEquals(built.toLine(), MetricsHistory.Record.parse(built.toLine()).toLine());
+  }
+
+  @Test
+  public void testParseRejectsOtherLines() {
+    assertNull(MetricsHistory.Record.parse("#started\twallMillis\tinputFiles\tcompiledFiles"
+        + "\toutputBytes\tscanMillis\treadMillis\tplanMillis\tcompileMillis\twriteMillis"));
+    assertNull(MetricsHistory.Record.parse(""));
+    assertNull(MetricsHistory.Record.parse("2026-10-18\t4249\t400\t400\t336000\t1\t2\t3\t4"));
+    assertNull(MetricsHistory.Record.parse("2026-10-18\t4249\t400\t400\t336000\t1\t2\t3\t4\tx"));
+  }
+
+  @Test
+  public void testAppendKeepsTheMostRecentBuilds() throws IOException {
+    File directory = Files.createTempDirectory("soy-history-test").toFile();
+    try {
+      MetricsHistory history = new MetricsHistory(new File(directory, "history.tsv"), 2);
+      assertTrue(history.load().isEmpty());
+      for (long millis = 1; millis <= 3; millis++) {
+        history.append(history.load(), build(millis, 1, 1, 1));
+      }
+      List<MetricsHistory.Record> records = history.load();
+      assertEquals(2, records.size());
+      assertEquals(build(2, 1, 1, 1).toLine(), records.get(0).toLine());
+      assertEquals(build(3, 1, 1, 1).toLine(), records.get(1).toLine());
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  public void testNoRegressionWithinThreshold() {
+    List<MetricsHistory.Record> history =
+        builds(build(2000, 100, 100, 10000), build(2100, 100, 100, 10000),
+            build(1900, 100, 100, 10000));
+    assertTrue(MetricsHistory.findRegressions(history, build(2900, 100, 100, 14000), 50)
+        .isEmpty());
+  }
+
+  @Test
+  public void testTimeRegression() {
+    List<MetricsHistory.Record> history =
+        builds(build(2000, 100, 100, 10000), build(2100, 100, 100, 10000),
+            build(1900, 100, 100, 10000));
+    List<String> regressions =
+        MetricsHistory.findRegressions(history, build(5000, 100, 100, 10000), 50);
+    assertEquals(1, regressions.size());
+    assertTrue(regressions.get(0), regressions.get(0).contains("150% more"));
+    assertTrue(regressions.get(0), regressions.get(0).contains("compile phase"));
+  }
+
+  @Test
+  public void testSmallTimeIncreasesAreNoise() {
+    List<MetricsHistory.Record> history =
+        builds(build(100, 100, 100, 10000), build(100, 100, 100, 10000),
+            build(100, 100, 100, 10000));
+    assertTrue(MetricsHistory.findRegressions(history, build(400, 100, 100, 10000), 50)
+        .isEmpty());
+  }
+
+  @Test
+  public void testComparesOnlySimilarBuilds() {
+    // Incremental builds compiling a few files are no baseline for a full build.
+    List<MetricsHistory.Record> history = new ArrayList<MetricsHistory.Record>();
+    for (int i = 0; i < 5; i++) {
+      history.add(build(100, 100, 2, 200));
+    }
+    assertTrue(MetricsHistory.findRegressions(history, build(5000, 100, 100, 10000), 50)
+        .isEmpty());
+  }
+
+  @Test
+  public void testNeedsEnoughBuilds() {
+    List<MetricsHistory.Record> history =
+        builds(build(2000, 100, 100, 10000), build(2000, 100, 100, 10000));
+    assertTrue(MetricsHistory.findRegressions(history, build(9000, 100, 100, 90000), 50)
+        .isEmpty());
+  }
+
+  @Test
+  public void testOutputSizeRegression() {
+    // Compared per file, so a full build with more files is not a regression by itself.
+    List<MetricsHistory.Record> history =
+        builds(build(2000, 100, 100, 10000), build(2000, 100, 100, 10000),
+            build(2000, 100, 100, 10000), build(100, 100, 2, 1000));
+    assertTrue(MetricsHistory.findRegressions(history, build(2000, 150, 150, 15000), 50)
+        .isEmpty());
+    List<String> regressions =
+        MetricsHistory.findRegressions(history, build(2000, 100, 100, 30000), 50);
+    assertEquals(1, regressions.size());
+    assertTrue(regressions.get(0), regressions.get(0).contains("300 bytes per file"));
+  }
+
+  @Test
+  public void testZeroThresholdReportsAnyIncrease() {
+    List<MetricsHistory.Record> history =
+        builds(build(2000, 100, 100, 10000), build(2000, 100, 100, 10000),
+            build(2000, 100, 100, 10000));
+    assertEquals(2, MetricsHistory.findRegressions(history, build(2500, 100, 100, 10100), 0)
+        .size());
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class TestOutputCache {
+  private static String key(String options, String... pathsAndHashes) {
+    SortedMap<String, String> hashes = new TreeMap<String, String>();
+    for (int i = 0; i < pathsAndHashes.length; i += 2) {
+      hashes.put(pathsAndHashes[i], pathsAndHashes[i + 1]);
+    }
+    return OutputCache.getKey(new Fingerprint().add(options), hashes);
+  }
+
+  @Test
+  public void testKeyIsStable() {
+    assertEquals(key("options", "a.soy", "1", "b.soy", "2"),
+        key("options", "b.soy", "2", "a.soy", "1"));
+    assertEquals(40, key("options").length());
+  }
+
+  @Test
+  public void testKeyCoversEverythingThatAffectsTheOutputs() {
+    String key = key("options", "a.soy", "1", "b.soy", "2");
+    assertFalse(key.equals(key("other options", "a.soy", "1", "b.soy", "2")));
+    assertFalse(key.equals(key("options", "a.soy", "1", "b.soy", "3")));
+    assertFalse(key.equals(key("options", "a.soy", "1", "c.soy", "2")));
+    assertFalse(key.equals(key("options", "a.soy", "1")));
+  }
+
+  @Test
+  public void testKeyDelimitsValues() {
+    assertFalse(key("options", "a.soy", "12").equals(key("options", "a.soy1", "2")));
+  }
+
+  @Test
+  public void testStoreAndRestore() throws IOException {
+    File directory = Files.createTempDirectory("soy-cache-test").toFile();
+    try {
+      File outputs = new File(directory, "out");
+      FileUtils.writeStringToFile(new File(outputs, "a.soy.js"), "a", "UTF-8");
+      FileUtils.writeStringToFile(new File(outputs, "sub/b.soy.js"), "b", "UTF-8");
+      List<String> filenames = Arrays.asList("a.soy", "sub/b.soy");
+      OutputCache cache = new OutputCache(new File(directory, "cache"), 2);
+      String key = key("options", "a.soy", "1", "sub/b.soy", "2");
+      cache.store(key, filenames, outputs);
+
+      File restored = new File(directory, "restored");
+      OutputWriter writer = new OutputWriter(OutputWriter.Fsync.NONE, 1, false);
+      try {
+        assertFalse(cache.restore(key("options"), filenames, restored, writer));
+        assertTrue(cache.restore(key, filenames, restored, writer));
+      } finally {
+        writer.close();
+      }
+      assertEquals("a", FileUtils.readFileToString(new File(restored, "a.soy.js"), "UTF-8"));
+      assertEquals("b", FileUtils.readFileToString(new File(restored, "sub/b.soy.js"), "UTF-8"));
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestOutputWriter {
+  /** Text with one, two, three and four byte characters, and an unpaired surrogate. */
+  private static final String MIXED = "ascii \u00e9t\u00e9 \u20ac \uD83D\uDE00 \uD83D end";
+
+  private File mDirectory;
+
+  private OutputWriter mWriter;
+
+  @Before
+  public void createDirectory() throws IOException {
+    mDirectory = Files.createTempDirectory("soy-writer-test").toFile();
+    mWriter = new OutputWriter(OutputWriter.Fsync.NONE, 2, false);
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    mWriter.close();
+    FileUtils.deleteDirectory(mDirectory);
+  }
+
+  private static byte[] toBytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void testEncodeMatchesGetBytes() {
+    for (String text : new String[] {"", "ascii", MIXED, "\uD83D\uDE00\uD83D\uDE01",
+        "\uDE00 low surrogate first", "trailing high surrogate \uD83D"}) {
+      ByteBuffer buffer = mWriter.encode(text);
+      assertArrayEquals(text, text.getBytes(StandardCharsets.UTF_8), toBytes(buffer));
+      mWriter.release(buffer);
+    }
+  }
+
+  @Test
+  public void testReleasedBuffersAreReused() {
+    ByteBuffer first = mWriter.encode(MIXED);
+    mWriter.release(first);
+    ByteBuffer second = mWriter.encode("second");
+    assertSame(first, second);
+    assertArrayEquals("second".getBytes(StandardCharsets.UTF_8), toBytes(second));
+  }
+
+  @Test
+  public void testEncodesOutputsLargerThanPooledBuffers() {
+    OutputWriter writer = new OutputWriter(OutputWriter.Fsync.NONE, 1, true);
+    ByteBuffer small = writer.encode("small");
+    assertTrue(small.isDirect());
+    writer.release(small);
+
+    StringBuilder large = new StringBuilder();
+    while (large.length() < 3 * small.capacity()) {
+      large.append(MIXED);
+    }
+    ByteBuffer buffer = writer.encode(large.toString());
+    assertTrue(buffer.isDirect());
+    assertTrue(buffer.capacity() > small.capacity());
+    assertArrayEquals(large.toString().getBytes(StandardCharsets.UTF_8), toBytes(buffer));
+    writer.release(buffer);
+
+    // The small buffer went back to the pool, and still serves small outputs.
+    ByteBuffer reused = writer.encode("again");
+    assertSame(small, reused);
+    assertArrayEquals("again".getBytes(StandardCharsets.UTF_8), toBytes(reused));
+  }
+
+  @Test
+  public void testEncodesSurrogatePairsThatExactlyFillABuffer() {
+    OutputWriter writer = new OutputWriter(OutputWriter.Fsync.NONE, 1, true);
+    int capacity = writer.encode("").capacity();
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < capacity / 4; i++) {
+      text.append("\uD83D\uDE00");
+    }
+    ByteBuffer buffer = writer.encode(text.toString());
+    assertEquals(capacity, buffer.capacity());
+    assertEquals(capacity, buffer.remaining());
+    assertArrayEquals(text.toString().getBytes(StandardCharsets.UTF_8), toBytes(buffer));
+  }
+
+  @Test
+  public void testWrite() throws IOException {
+    File file = new File(mDirectory, "sub/a.js");
+    ByteBuffer buffer = mWriter.encode(MIXED);
+    mWriter.write(file, buffer);
+    assertEquals(MIXED.getBytes(StandardCharsets.UTF_8).length, buffer.remaining());
+    assertArrayEquals(MIXED.getBytes(StandardCharsets.UTF_8), FileUtils.readFileToByteArray(file));
+    assertFalse(OutputWriter.getTempFile(file).exists());
+  }
+
+  @Test
+  public void testAwaitWaitsForBackgroundWrites() throws Exception {
+    final AtomicInteger written = new AtomicInteger();
+    for (int i = 0; i < 100; i++) {
+      final File file = new File(mDirectory, i + ".js");
+      mWriter.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          ByteBuffer buffer = mWriter.encode(file.getName());
+          try {
+            mWriter.write(file, buffer);
+          } finally {
+            mWriter.release(buffer);
+          }
+          written.incrementAndGet();
+          return null;
+        }
+      });
+    }
+    mWriter.await();
+    assertEquals(100, written.get());
+    assertEquals("42.js", FileUtils.readFileToString(new File(mDirectory, "42.js"), "UTF-8"));
+  }
+
+  @Test
+  public void testAwaitReportsBackgroundFailures() throws InterruptedException {
+    final IOException failure = new IOException("disk full");
+    try {
+      mWriter.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          throw failure;
+        }
+      });
+      mWriter.await();
+      fail("Expected the background failure to be reported.");
+    } catch (ExecutionException e) {
+      assertSame(failure, e.getCause());
+    }
+    // Later writes are refused too.
+    try {
+      mWriter.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          return null;
+        }
+      });
+      fail("Expected the earlier failure to be reported.");
+    } catch (ExecutionException e) {
+      assertSame(failure, e.getCause());
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Test;
+
+public class TestProgressReporter {
+  /** A log that records its info messages. */
+  private static final class RecordingLog extends SystemStreamLog {
+    private final List<String> mMessages = new ArrayList<String>();
+
+    @Override
+    public synchronized void info(CharSequence message) {
+      mMessages.add(message.toString());
+    }
+  }
+
+  @Test
+  public void testNeverReportsWithoutInterval() {
+    RecordingLog log = new RecordingLog();
+    ProgressReporter progress = new ProgressReporter(log, 0, 10);
+    for (int i = 0; i < 10; i++) {
+      progress.compiled(1);
+      progress.done(100);
+    }
+    assertTrue(log.mMessages.isEmpty());
+    assertEquals(1000, progress.getBytesWritten());
+  }
+
+  @Test
+  public void testReportsOncePerInterval() throws InterruptedException {
+    RecordingLog log = new RecordingLog();
+    final ProgressReporter progress = new ProgressReporter(log, 1, 8000);
+    progress.compiled(8000);
+    assertTrue(log.mMessages.isEmpty());
+    Thread.sleep(1100);
+
+    // Only one of the threads that find a report due logs it.
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            progress.done(1);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1, log.mMessages.size());
+    assertTrue(log.mMessages.get(0), log.mMessages.get(0).startsWith("Compiling soy: "));
+    assertTrue(log.mMessages.get(0), log.mMessages.get(0).contains(" of 8000 files done ("));
+    assertEquals(8000, progress.getBytesWritten());
+  }
+}
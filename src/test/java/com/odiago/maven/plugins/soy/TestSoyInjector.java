@@ -0,0 +1,79 @@
+/**
+ * Licensed to WibiData, Inc. under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.  WibiData, Inc.
+ * licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.odiago.maven.plugins.soy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.google.inject.AbstractModule;
+import org.junit.Test;
+
+public class TestSoyInjector {
+  /** A module whose constructor fails with a checked exception. */
+  public static final class FailingModule extends AbstractModule {
+    public FailingModule() throws IOException {
+      throw new IOException("broken");
+    }
+
+    @Override
+    protected void configure() {
+    }
+  }
+
+  /** A module without a constructor the injector can call. */
+  public static final class ConfiguredModule extends AbstractModule {
+    public ConfiguredModule(String configuration) {
+    }
+
+    @Override
+    protected void configure() {
+    }
+  }
+
+  private static IllegalArgumentException install(Class<?> moduleClass) {
+    try {
+      SoyInjector.install(Arrays.asList(moduleClass.getName()));
+      fail("Expected " + moduleClass.getName() + " to be rejected.");
+      return null;
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(moduleClass.getName()));
+      return e;
+    }
+  }
+
+  @Test
+  public void testRejectsClassesThatAreNotModules() {
+    install(String.class);
+  }
+
+  @Test
+  public void testReportsConstructorFailures() {
+    IllegalArgumentException e = install(FailingModule.class);
+    assertTrue(e.getCause() instanceof IOException);
+    assertEquals("broken", e.getCause().getMessage());
+  }
+
+  @Test
+  public void testRejectsModulesWithoutNoArgumentConstructor() {
+    assertTrue(install(ConfiguredModule.class).getCause() instanceof NoSuchMethodException);
+  }
+}